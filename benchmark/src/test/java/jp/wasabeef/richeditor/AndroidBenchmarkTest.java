@@ -0,0 +1,119 @@
+package jp.wasabeef.richeditor;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.net.Uri;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Paths that need Android classes, measured under Robolectric with a plain timing loop and
+ * written to robolectric.json in the same shape as the JMH results. Bitmap encoding runs
+ * against Robolectric's graphics shadows, so its numbers are only comparable between runs of
+ * this benchmark, not with a device.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class AndroidBenchmarkTest {
+
+  private static final int[] SIZES = {10000, 200000, 1000000};
+  private static final long WARMUP_NANOS = 2000000000L;
+  private static final long MEASUREMENT_NANOS = 5000000000L;
+
+  private static JSONArray results;
+  static volatile Object sink;
+
+  private interface Operation {
+    Object run() throws Exception;
+  }
+
+  @BeforeClass
+  public static void setUpClass() {
+    results = new JSONArray();
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws Exception {
+    File reportDir = new File(System.getProperty("benchmark.reportDir", "build/reports/benchmarks"));
+    reportDir.mkdirs();
+    Writer writer = new OutputStreamWriter(
+      new FileOutputStream(new File(reportDir, "robolectric.json")), "UTF-8");
+    try {
+      writer.write(results.toString(2));
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * What the url transport does for every content callback.
+   */
+  @Test
+  public void callbackDecode() throws Exception {
+    for (int size : SIZES) {
+      final String url = "re-callback://" + Uri.encode(Documents.html(size));
+      measure("callbackDecode", size, new Operation() {
+        @Override
+        public Object run() {
+          String decoded = Uri.decode(url);
+          return decoded.substring("re-callback://".length());
+        }
+      });
+    }
+  }
+
+  @Test
+  public void toBase64() throws Exception {
+    final Bitmap bitmap = Bitmap.createBitmap(512, 512, Bitmap.Config.ARGB_8888);
+    new Canvas(bitmap).drawColor(Color.BLUE);
+    measure("toBase64", 512, new Operation() {
+      @Override
+      public Object run() {
+        return Utils.toBase64(bitmap);
+      }
+    });
+    measure("toBase64Jpeg", 512, new Operation() {
+      @Override
+      public Object run() {
+        return Utils.toBase64(bitmap, Bitmap.CompressFormat.JPEG, 80);
+      }
+    });
+  }
+
+  private static void measure(String name, int size, Operation operation) throws Exception {
+    long end = System.nanoTime() + WARMUP_NANOS;
+    while (System.nanoTime() < end) {
+      sink = operation.run();
+    }
+
+    long operations = 0;
+    long start = System.nanoTime();
+    end = start + MEASUREMENT_NANOS;
+    long now;
+    do {
+      sink = operation.run();
+      operations++;
+      now = System.nanoTime();
+    } while (now < end);
+
+    double score = operations * 1e9 / (now - start);
+    System.out.println(name + " size=" + size + ": " + score + " ops/s");
+    results.put(new JSONObject()
+      .put("benchmark", AndroidBenchmarkTest.class.getName() + "." + name)
+      .put("params", new JSONObject().put("size", String.valueOf(size)))
+      .put("primaryMetric", new JSONObject()
+        .put("score", score)
+        .put("scoreUnit", "ops/s")));
+  }
+}
@@ -0,0 +1,87 @@
+package jp.wasabeef.richeditor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * {@link HtmlCodec} against gzip of the html, the usual way to store it compactly. The sizes
+ * are written by {@link CodecSizeTest}.
+ */
+@State(Scope.Benchmark)
+public class CodecBenchmark {
+
+  @Param({"10000", "200000", "1000000"})
+  public int size;
+
+  private String html;
+  private byte[] encoded;
+  private byte[] encodedUncompressed;
+  private byte[] gzipped;
+
+  @Setup
+  public void setUp() throws IOException {
+    html = Documents.html(size);
+    encoded = HtmlCodec.encode(html, true);
+    encodedUncompressed = HtmlCodec.encode(html, false);
+    gzipped = gzip(html);
+  }
+
+  @Benchmark
+  public byte[] encode() {
+    return HtmlCodec.encode(html, true);
+  }
+
+  @Benchmark
+  public byte[] encodeUncompressed() {
+    return HtmlCodec.encode(html, false);
+  }
+
+  @Benchmark
+  public byte[] encodeGzip() throws IOException {
+    return gzip(html);
+  }
+
+  @Benchmark
+  public String decode() throws IOException {
+    return HtmlCodec.decode(encoded);
+  }
+
+  @Benchmark
+  public String decodeUncompressed() throws IOException {
+    return HtmlCodec.decode(encodedUncompressed);
+  }
+
+  @Benchmark
+  public String decodeGzip() throws IOException {
+    return gunzip(gzipped);
+  }
+
+  static byte[] gzip(String html) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(html.length() / 4);
+    GZIPOutputStream out = new GZIPOutputStream(bytes, 8192);
+    out.write(html.getBytes("UTF-8"));
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  static String gunzip(byte[] gzipped) throws IOException {
+    GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped), 8192);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(gzipped.length * 8);
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    in.close();
+    return out.toString("UTF-8");
+  }
+}
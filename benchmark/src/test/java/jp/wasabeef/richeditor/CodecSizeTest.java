@@ -0,0 +1,55 @@
+package jp.wasabeef.richeditor;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Stored sizes of {@link HtmlCodec} against the html and gzip of it, written to
+ * codec-size.json. The speed is measured by {@link CodecBenchmark}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CodecSizeTest {
+
+  private static final int[] SIZES = {10000, 200000, 1000000};
+
+  @Test
+  public void sizes() throws Exception {
+    JSONArray results = new JSONArray();
+    for (int size : SIZES) {
+      String html = Documents.html(size);
+      int utf8 = html.getBytes("UTF-8").length;
+      int gzip = CodecBenchmark.gzip(html).length;
+      int encoded = HtmlCodec.encode(html, true).length;
+      int uncompressed = HtmlCodec.encode(html, false).length;
+      Assert.assertEquals(html, HtmlCodec.decode(HtmlCodec.encode(html, true)));
+
+      System.out.println("size=" + size + ": html " + utf8 + ", gzip " + gzip + ", codec "
+        + encoded + ", codec uncompressed " + uncompressed + " bytes");
+      results.put(new JSONObject()
+        .put("size", size)
+        .put("html", utf8)
+        .put("gzip", gzip)
+        .put("codec", encoded)
+        .put("codecUncompressed", uncompressed));
+    }
+
+    File reportDir = new File(System.getProperty("benchmark.reportDir", "build/reports/benchmarks"));
+    reportDir.mkdirs();
+    Writer writer = new OutputStreamWriter(
+      new FileOutputStream(new File(reportDir, "codec-size.json")), "UTF-8");
+    try {
+      writer.write(results.toString(2));
+    } finally {
+      writer.close();
+    }
+  }
+}
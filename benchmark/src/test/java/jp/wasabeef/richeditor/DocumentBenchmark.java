@@ -0,0 +1,77 @@
+package jp.wasabeef.richeditor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Java-side paths whose cost grows with the document.
+ */
+@State(Scope.Benchmark)
+public class DocumentBenchmark {
+
+  @Param({"10000", "200000", "1000000"})
+  public int size;
+
+  private String html;
+  private BlockDocument document;
+  private ContentDelta edit;
+  private long version;
+
+  @Setup
+  public void setUp() {
+    html = Documents.html(size);
+    List<String> blocks = Documents.blocks(size);
+    document = new BlockDocument();
+    document.apply(new ContentDelta(ContentDelta.NO_VERSION, 0, 0, 0, blocks));
+    version = 0;
+  }
+
+  /**
+   * What {@link RichEditor#setHtml(String)} does to every document.
+   */
+  @Benchmark
+  public String setHtmlUrlEncode() throws UnsupportedEncodingException {
+    return "javascript:RE.setHtml('" + URLEncoder.encode(html, "UTF-8") + "');";
+  }
+
+  /**
+   * What {@link RichEditor#setHtmlStreaming} does on its background thread.
+   */
+  @Benchmark
+  public int setHtmlStreamingEscape() {
+    StringBuilder out = new StringBuilder(html.length() + 64);
+    Utils.appendJsString(out, html, 0, html.length());
+    return out.length();
+  }
+
+  /**
+   * A keystroke in delta mode: one block replaced, then the html rebuilt for a text listener.
+   */
+  @Benchmark
+  public String deltaKeystroke() {
+    List<String> block = new ArrayList<>(Collections.singletonList("<div>typed " + version + "</div>"));
+    document.apply(new ContentDelta(version, version + 1, 1, 1, block));
+    version++;
+    return document.getHtml();
+  }
+
+  /**
+   * A keystroke in delta mode without a text listener, only the delta is applied.
+   */
+  @Benchmark
+  public int deltaKeystrokeWithoutHtml() {
+    List<String> block = new ArrayList<>(Collections.singletonList("<div>typed " + version + "</div>"));
+    document.apply(new ContentDelta(version, version + 1, 1, 1, block));
+    version++;
+    return document.getBlockCount();
+  }
+}
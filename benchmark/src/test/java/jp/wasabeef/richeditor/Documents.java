@@ -0,0 +1,44 @@
+package jp.wasabeef.richeditor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Editor-like html of a given size, built from the markup execCommand produces.
+ */
+final class Documents {
+
+  private static final String[] BLOCKS = {
+    "<div><font face=\"Arial\" size=\"2\" color=\"#333333\">Lorem ipsum dolor sit amet, "
+      + "consectetur adipiscing elit, sed do eiusmod tempor incididunt ut labore.</font></div>",
+    "<div><b>Bold</b> and <i>italic</i> text with a <a href=\"https://example.com/page\">link"
+      + "</a> &amp; some entities&nbsp;&lt;here&gt;.</div>",
+    "<ul><li>First item</li><li>Second <u>underlined</u> item</li><li>Third</li></ul>",
+    "<h2>Section heading ぁ ص</h2>",
+    "<div><span style=\"color: rgb(255, 0, 0);\">Colored</span> text <input type=\"checkbox\" "
+      + "name=\"1600000000000\" value=\"1600000000000\"/> &nbsp;todo</div>",
+    "<blockquote>Quoted text that goes on for a while, just like a real quote would.</blockquote>"
+  };
+
+  private Documents() {
+  }
+
+  static List<String> blocks(int size) {
+    List<String> blocks = new ArrayList<>();
+    int length = 0;
+    for (int i = 0; length < size; i++) {
+      String block = BLOCKS[i % BLOCKS.length];
+      blocks.add(block);
+      length += block.length();
+    }
+    return blocks;
+  }
+
+  static String html(int size) {
+    StringBuilder html = new StringBuilder(size + 256);
+    for (String block : blocks(size)) {
+      html.append(block);
+    }
+    return html.toString();
+  }
+}
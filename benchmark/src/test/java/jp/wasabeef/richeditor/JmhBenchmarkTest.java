@@ -0,0 +1,38 @@
+package jp.wasabeef.richeditor;
+
+import org.junit.Test;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.io.File;
+
+/**
+ * Runs the JMH benchmarks of this module and writes jmh.json to the report directory.
+ * Benchmarks run in the test JVM (no forks), Gradle test workers have no usable classpath to
+ * fork with.
+ */
+public class JmhBenchmarkTest {
+
+  @Test
+  public void run() throws Exception {
+    File reportDir = new File(System.getProperty("benchmark.reportDir", "build/reports/benchmarks"));
+    reportDir.mkdirs();
+
+    Options options = new OptionsBuilder()
+      .include(DocumentBenchmark.class.getName())
+      .include(StateBenchmark.class.getName())
+      .include(CodecBenchmark.class.getName())
+      .forks(0)
+      .warmupIterations(3)
+      .warmupTime(TimeValue.seconds(1))
+      .measurementIterations(5)
+      .measurementTime(TimeValue.seconds(1))
+      .resultFormat(ResultFormatType.JSON)
+      .result(new File(reportDir, "jmh.json").getPath())
+      .build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,40 @@
+package jp.wasabeef.richeditor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Java-side paths that run per selection change or per formatting command.
+ */
+@State(Scope.Benchmark)
+public class StateBenchmark {
+
+  private static final String[] STATES = {"0", "1", "3", "4161", "131072", "1"};
+
+  private DecorationState state;
+  private int index;
+  private int color;
+
+  @Setup
+  public void setUp() {
+    state = new DecorationState();
+  }
+
+  @Benchmark
+  public boolean stateCheckChanged() {
+    index = (index + 1) % STATES.length;
+    return state.update(STATES[index]);
+  }
+
+  @Benchmark
+  public boolean stateCheckUnchanged() {
+    return state.update("4161");
+  }
+
+  @Benchmark
+  public String convertHexColorString() {
+    return Utils.toHexColorString(color++);
+  }
+}
@@ -0,0 +1,4 @@
+# Messages from the editor page are delivered through a JavascriptInterface.
+-keepclassmembers class jp.wasabeef.richeditor.RichEditor$EditorBridge {
+  @android.webkit.JavascriptInterface <methods>;
+}
@@ -0,0 +1,65 @@
+package jp.wasabeef.richeditor;
+
+import android.app.Instrumentation;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class LazyMediaTest {
+
+  private static final String HTML = "<p><img src=\"https://example.com/a.png\"></p>"
+    + "<video src=\"https://example.com/a.mp4\"></video>"
+    + "<iframe src=\"https://www.youtube.com/embed/M7lc1UVf-VE\"></iframe>";
+
+  @Test
+  public void getHtmlHasNoPlaceholders() throws InterruptedException {
+    final Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+    final RichEditor[] editor = new RichEditor[1];
+    final CountDownLatch loaded = new CountDownLatch(1);
+    instrumentation.runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        editor[0] = new RichEditor(instrumentation.getTargetContext());
+        editor[0].setOnInitialLoadListener(new RichEditor.AfterInitialLoadListener() {
+          @Override
+          public void onAfterInitialLoad(boolean isReady) {
+            loaded.countDown();
+          }
+        });
+      }
+    });
+    Assert.assertTrue(loaded.await(10, TimeUnit.SECONDS));
+
+    final String[] html = new String[1];
+    final CountDownLatch read = new CountDownLatch(1);
+    instrumentation.runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        editor[0].setLazyMedia(true);
+        editor[0].setHtml(HTML);
+        editor[0].getHtml(new RichEditor.ContentCallback() {
+          @Override
+          public void onContent(String content, long version) {
+            html[0] = content;
+            read.countDown();
+          }
+        });
+      }
+    });
+    Assert.assertTrue(read.await(10, TimeUnit.SECONDS));
+
+    Assert.assertFalse(html[0], html[0].contains("data-re-"));
+    Assert.assertFalse(html[0], html[0].contains("srcdoc"));
+    Assert.assertFalse(html[0], html[0].contains("poster"));
+    Assert.assertTrue(html[0], html[0].contains("src=\"https://example.com/a.png\""));
+    Assert.assertTrue(html[0], html[0].contains("src=\"https://example.com/a.mp4\""));
+  }
+}
@@ -28,25 +28,1015 @@ RE.currentSelection = {
 
 RE.editor = document.getElementById('editor');
 
-document.addEventListener("selectionchange", function() { RE.backuprange(); });
+document.addEventListener("selectionchange", function() {
+    RE.backuprange();
+    RE.scheduleStateUpdate();
+    RE.scheduleSelectionReport();
+});
+
+window.addEventListener("scroll", function() {
+    RE.scheduleBlockSizeHint();
+});
+
+// Messages to Java
+RE.transport = "url";
+RE.outbox = [];
+RE.outboxScheduled = false;
+
+// Returns whether the bridge was told it is no longer used.
+RE.setTransport = function(transport) {
+    var closing = RE.transport == "bridge" && transport != "bridge" && !!window.RichEditorBridge;
+    if (closing) {
+        RE.outbox.push({"t": "transport", "d": transport});
+    }
+    RE.flushOutbox();
+    RE.transport = transport;
+    return closing;
+}
+
+RE.post = function(type, data) {
+    if (RE.transport == "bridge" && window.RichEditorBridge) {
+        RE.outbox.push({"t": type, "d": data});
+        RE.scheduleOutbox();
+    } else {
+        var payload = typeof data == "string" ? data : JSON.stringify(data);
+        window.location.href = "re-" + type + "://" + encodeURIComponent(payload);
+    }
+}
+
+// Sends everything posted within one frame as a single bridge call.
+RE.scheduleOutbox = function() {
+    if (RE.outboxScheduled) {
+        return;
+    }
+    RE.outboxScheduled = true;
+    if (window.requestAnimationFrame) {
+        window.requestAnimationFrame(RE.flushOutbox);
+    }
+    // requestAnimationFrame does not fire while the WebView is hidden
+    setTimeout(RE.flushOutbox, 32);
+}
+
+RE.flushOutbox = function() {
+    RE.outboxScheduled = false;
+    if (RE.outbox.length == 0) {
+        return;
+    }
+    var messages = RE.outbox;
+    RE.outbox = [];
+    // A web message listener where the WebView has them, a JavascriptInterface otherwise.
+    var bridge = window.RichEditorBridge;
+    if (bridge.postMessages) {
+        bridge.postMessages(JSON.stringify(messages));
+    } else {
+        bridge.postMessage(JSON.stringify(messages));
+    }
+}
 
 // Initializations
+RE.contentCallbackEnabled = true;
+
+RE.setContentCallbackEnabled = function(enabled) {
+    RE.contentCallbackEnabled = enabled;
+}
+
 RE.callback = function() {
-    window.location.href = "re-callback://" + encodeURIComponent(RE.getHtml());
+    if (RE.deltaEnabled || !RE.contentCallbackEnabled || RE.paste) {
+        return;
+    }
+    RE.post("callback", RE.getHtml());
+}
+
+// Incremental content tracking
+RE.version = 0;
+RE.deltaVersion = -1;
+RE.deltaEnabled = false;
+RE.blockNodes = [];
+RE.blockHtml = [];
+
+RE.topLevelNode = function(node) {
+    while (node && node.parentNode !== RE.editor) {
+        node = node.parentNode;
+    }
+    return node;
+}
+
+RE.onMutations = function(records) {
+    for (var i = 0; i < records.length; i++) {
+        var block = RE.topLevelNode(records[i].target);
+        if (block) {
+            block.__reDirty = true;
+            block.__reFindDirty = true;
+        }
+    }
+    RE.version++;
+    if (RE.deltaEnabled && !RE.paste) {
+        RE.flushDelta();
+    }
+    if (RE.statsEnabled) {
+        RE.trackStats(records);
+    }
+    RE.scheduleBlockSizeHint();
+    if (RE.lazyMedia) {
+        RE.observeMedia(records);
+    }
+    if (RE.find) {
+        RE.scheduleFind();
+    }
+}
+
+RE.escapeText = function(text) {
+    return text.replace(/&/g, '&amp;').replace(/</g, '&lt;').replace(/>/g, '&gt;').replace(/\u00a0/g, '&nbsp;');
+}
+
+RE.serializeNode = function(node) {
+    switch (node.nodeType) {
+        case Node.ELEMENT_NODE:
+            return RE.hasDeferredMedia(node) ? RE.cleanHtml(node, false) : node.outerHTML;
+        case Node.TEXT_NODE:
+            return RE.escapeText(node.data);
+        case Node.COMMENT_NODE:
+            return '<!--' + node.data + '-->';
+        default:
+            return '';
+    }
+}
+
+RE.sendDelta = function(base, start, deleteCount, blocks) {
+    RE.deltaVersion = RE.version;
+    var delta = {"b": base, "v": RE.version, "s": start, "d": deleteCount, "h": blocks};
+    if (RE.applyingHistory) {
+        delta.u = 1;
+    }
+    RE.post("delta", delta);
+}
+
+RE.flushDelta = function() {
+    var nodes = RE.editor.childNodes;
+    var oldNodes = RE.blockNodes;
+    var start = 0;
+    var newEnd = nodes.length;
+    var oldEnd = oldNodes.length;
+    while (start < newEnd && start < oldEnd && nodes[start] === oldNodes[start] && !nodes[start].__reDirty) {
+        start++;
+    }
+    while (newEnd > start && oldEnd > start && nodes[newEnd - 1] === oldNodes[oldEnd - 1] && !nodes[newEnd - 1].__reDirty) {
+        newEnd--;
+        oldEnd--;
+    }
+
+    var changed = newEnd - start != oldEnd - start;
+    var inserted = [];
+    var html = [];
+    for (var i = start; i < newEnd; i++) {
+        var node = nodes[i];
+        node.__reDirty = false;
+        inserted.push(node);
+        html.push(RE.serializeNode(node));
+        if (!changed && html[i - start] !== RE.blockHtml[i]) {
+            changed = true;
+        }
+    }
+    if (!changed) {
+        return;
+    }
+
+    var deleteCount = oldEnd - start;
+    RE.blockNodes.splice.apply(RE.blockNodes, [start, deleteCount].concat(inserted));
+    RE.blockHtml.splice.apply(RE.blockHtml, [start, deleteCount].concat(html));
+    RE.sendDelta(RE.deltaVersion, start, deleteCount, html);
+}
+
+RE.resetDelta = function() {
+    RE.blockNodes = Array.prototype.slice.call(RE.editor.childNodes);
+    RE.blockHtml = RE.blockNodes.map(function(node) {
+        node.__reDirty = false;
+        return RE.serializeNode(node);
+    });
+    RE.sendDelta(-1, 0, 0, RE.blockHtml);
+}
+
+RE.setDeltaEnabled = function(enabled) {
+    RE.deltaEnabled = enabled;
+    if (enabled) {
+        RE.resetDelta();
+    } else {
+        RE.blockNodes = [];
+        RE.blockHtml = [];
+    }
+}
+
+// Word and character statistics. Every top-level node caches its own counts and the totals are
+// adjusted by the nodes a mutation touched, so the work per edit does not grow with the document.
+// The counting follows DocumentMirror on the Java side.
+RE.statsEnabled = false;
+RE.statsInterval = 250;
+RE.statsChars = 0;
+RE.statsWords = 0;
+RE.statsSent = null;
+RE.statsLastPost = 0;
+RE.statsTimer = null;
+RE.BLOCK_TAGS = /^(ADDRESS|ARTICLE|ASIDE|BLOCKQUOTE|DD|DIV|DL|DT|FIGCAPTION|FIGURE|FOOTER|H[1-6]|HEADER|HR|LI|MAIN|NAV|OL|P|PRE|SECTION|TABLE|TR|UL)$/;
+
+RE.blockStats = function(node) {
+    var text = '';
+    var space = false;
+    var trimSpace = function() {
+        if (text.charAt(text.length - 1) == ' ') {
+            text = text.slice(0, -1);
+        }
+    };
+    var walk = function(node) {
+        if (node.nodeType == Node.TEXT_NODE) {
+            var parts = node.data.split(/[ \t\n\r\f]+/);
+            for (var i = 0; i < parts.length; i++) {
+                if (i > 0) {
+                    space = true;
+                }
+                if (parts[i].length == 0) {
+                    continue;
+                }
+                if (space && (text.length == 0 || text.charAt(text.length - 1) != '\n')) {
+                    text += ' ';
+                }
+                space = false;
+                text += parts[i].replace(/\u00a0/g, ' ');
+            }
+            return;
+        }
+        if (node.nodeType != Node.ELEMENT_NODE || node.nodeName == 'SCRIPT' || node.nodeName == 'STYLE') {
+            return;
+        }
+        if (node.nodeName == 'BR') {
+            trimSpace();
+            text += '\n';
+            space = false;
+            return;
+        }
+        var block = RE.BLOCK_TAGS.test(node.nodeName);
+        var lineBreak = function() {
+            trimSpace();
+            if (text.length > 0 && text.charAt(text.length - 1) != '\n') {
+                text += '\n';
+            }
+            space = false;
+        };
+        if (block) {
+            lineBreak();
+        }
+        for (var child = node.firstChild; child; child = child.nextSibling) {
+            walk(child);
+        }
+        if (block) {
+            lineBreak();
+        }
+    };
+    walk(node);
+    if (space && (text.length == 0 || text.charAt(text.length - 1) != '\n')) {
+        text += ' ';
+    }
+
+    var block = node.nodeType == Node.ELEMENT_NODE && RE.BLOCK_TAGS.test(node.nodeName);
+    if (block) {
+        text = text.replace(/^ +/, '').replace(/[\n ]+$/, '');
+    }
+    var chars = text.replace(/\n/g, '');
+    var words = text.match(/\S+/g);
+    return {
+        "block": block,
+        "c": chars.length - (chars.match(/[\ud800-\udbff]/g) || []).length,
+        "w": words ? words.length : 0,
+        "s": /^\S/.test(text),
+        "e": /\S$/.test(text)
+    };
+}
+
+// Inline neighbours share a line, a word spanning both is counted once.
+RE.statsJoin = function(node) {
+    var previous = node.previousSibling;
+    return previous && previous.__reStats && !previous.__reStats.block && !node.__reStats.block
+        && previous.__reStats.e && node.__reStats.s ? 1 : 0;
+}
+
+RE.trackStats = function(records) {
+    var touched = [];
+    for (var i = 0; i < records.length; i++) {
+        var record = records[i];
+        if (record.target === RE.editor && record.type == 'childList') {
+            for (var j = 0; j < record.removedNodes.length; j++) {
+                var removed = record.removedNodes[j];
+                if (removed.__reStats) {
+                    RE.statsChars -= removed.__reStats.c;
+                    RE.statsWords -= removed.__reStats.w - removed.__reJoin;
+                    removed.__reStats = null;
+                }
+            }
+            for (var j = 0; j < record.addedNodes.length; j++) {
+                touched.push(record.addedNodes[j]);
+            }
+            touched.push(record.nextSibling);
+        } else {
+            var block = RE.topLevelNode(record.target);
+            if (block) {
+                block.__reStatsDirty = true;
+                touched.push(block, block.nextSibling);
+            }
+        }
+    }
+
+    var joins = [];
+    for (var i = 0; i < touched.length; i++) {
+        var node = touched[i];
+        if (!node || node.parentNode !== RE.editor) {
+            continue;
+        }
+        if (!node.__reStats || node.__reStatsDirty) {
+            if (node.__reStats) {
+                RE.statsChars -= node.__reStats.c;
+                RE.statsWords -= node.__reStats.w;
+            } else {
+                node.__reJoin = 0;
+            }
+            node.__reStats = RE.blockStats(node);
+            node.__reStatsDirty = false;
+            RE.statsChars += node.__reStats.c;
+            RE.statsWords += node.__reStats.w;
+        }
+        joins.push(node);
+    }
+    // Joins last, once the neighbours have their counts.
+    for (var i = 0; i < joins.length; i++) {
+        var join = RE.statsJoin(joins[i]);
+        RE.statsWords += joins[i].__reJoin - join;
+        joins[i].__reJoin = join;
+    }
+    RE.scheduleStats();
+}
+
+RE.resetStats = function() {
+    RE.statsChars = 0;
+    RE.statsWords = 0;
+    for (var node = RE.editor.firstChild; node; node = node.nextSibling) {
+        node.__reStats = RE.blockStats(node);
+        node.__reStatsDirty = false;
+        node.__reJoin = RE.statsJoin(node);
+        RE.statsChars += node.__reStats.c;
+        RE.statsWords += node.__reStats.w - node.__reJoin;
+    }
+    RE.statsSent = null;
+    RE.scheduleStats();
+}
+
+// Posts at most once per interval, the last change in an interval is always delivered.
+RE.scheduleStats = function() {
+    if (RE.statsTimer) {
+        return;
+    }
+    var wait = RE.statsLastPost + RE.statsInterval - Date.now();
+    if (wait <= 0) {
+        RE.postStats();
+    } else {
+        RE.statsTimer = setTimeout(RE.postStats, wait);
+    }
+}
+
+RE.postStats = function() {
+    RE.statsTimer = null;
+    var stats = RE.statsChars + ',' + RE.statsWords;
+    if (!RE.statsEnabled || stats == RE.statsSent) {
+        return;
+    }
+    RE.statsSent = stats;
+    RE.statsLastPost = Date.now();
+    RE.post("stats", stats);
+}
+
+RE.setStatsEnabled = function(enabled, interval) {
+    RE.statsEnabled = enabled;
+    RE.statsInterval = interval;
+    if (enabled) {
+        RE.resetStats();
+    }
+}
+
+// Long document mode. Blocks outside the viewport are laid out at a size hint instead of their
+// real size, the hint is the average height of the blocks that have been rendered. The class
+// and the hint live outside the editor's content, so getHtml() and deltas do not see them.
+RE.longDocument = false;
+RE.blockSizeTimer = null;
+RE.BLOCK_SIZE_SAMPLES = 50;
+
+RE.setLongDocumentMode = function(enabled) {
+    RE.longDocument = enabled;
+    RE.editor.classList.toggle('re-long-document', enabled);
+    if (enabled) {
+        RE.updateBlockSizeHint();
+    }
+}
+
+RE.scheduleBlockSizeHint = function() {
+    if (!RE.longDocument || RE.blockSizeTimer) {
+        return;
+    }
+    RE.blockSizeTimer = setTimeout(RE.updateBlockSizeHint, 500);
+}
+
+RE.updateBlockSizeHint = function() {
+    RE.blockSizeTimer = null;
+    var total = 0;
+    var count = 0;
+    var node = RE.editor.firstElementChild;
+    var viewport = window.innerHeight;
+    while (node && count < RE.BLOCK_SIZE_SAMPLES) {
+        var rect = node.getBoundingClientRect();
+        // Blocks near the viewport are rendered and report their real height.
+        if (rect.bottom > -viewport && rect.top < 2 * viewport && rect.height > 0) {
+            total += rect.height;
+            count++;
+        } else if (rect.top >= 2 * viewport) {
+            break;
+        }
+        node = node.nextElementSibling;
+    }
+    if (count > 0) {
+        document.documentElement.style.setProperty('--re-block-height', Math.round(total / count) + 'px');
+    }
+}
+
+// Forces a layout of the whole document and reports how long it took, to compare the modes.
+RE.measureLayout = function() {
+    var root = document.documentElement;
+    var width = root.style.width;
+    var start = performance.now();
+    root.style.width = (root.clientWidth - 1) + 'px';
+    var height = document.body.offsetHeight;
+    root.style.width = width;
+    height = document.body.offsetHeight;
+    return {"ms": (performance.now() - start) / 2, "h": height, "n": RE.editor.childNodes.length};
+}
+
+// Lazy media. Embeds are parked as placeholders, their src moved to data-re-src, before they
+// reach the live document, and get their src back when they come near the viewport. Parsing
+// happens in inert templates, where nothing loads. Serialization puts the src back on an inert
+// copy, so getHtml() and deltas never show the placeholders.
+RE.lazyMedia = false;
+RE.mediaDeferred = false;
+RE.videoPoster = null;
+RE.mediaObserver = null;
+RE.inertDocument = null;
+RE.MEDIA_SELECTOR = 'img[src], video[src], audio[src], iframe[src]';
+RE.DEFERRED_SELECTOR = '[data-re-src]';
+
+// A dark frame with a play button, shown for videos that have no poster of their own.
+RE.DEFAULT_VIDEO_POSTER = 'data:image/svg+xml,' + encodeURIComponent(
+    '<svg xmlns="http://www.w3.org/2000/svg" width="160" height="90" viewBox="0 0 160 90">'
+    + '<rect width="160" height="90" fill="#000"/>'
+    + '<path d="M68 30v30l26-15z" fill="#fff" fill-opacity=".8"/></svg>');
+
+RE.setLazyMedia = function(enabled, videoPoster) {
+    if (enabled && !window.IntersectionObserver) {
+        return;
+    }
+    RE.lazyMedia = enabled;
+    RE.videoPoster = videoPoster || null;
+    if (enabled) {
+        if (!RE.mediaObserver) {
+            RE.mediaObserver = new IntersectionObserver(RE.onMediaVisible, {"rootMargin": "100% 0px"});
+        }
+    } else if (RE.mediaDeferred) {
+        RE.restoreMedia(RE.editor.querySelectorAll(RE.DEFERRED_SELECTOR));
+    }
+}
+
+RE.matching = function(root, selector) {
+    var found = Array.prototype.slice.call(root.querySelectorAll(selector));
+    if (root.nodeType == Node.ELEMENT_NODE && root.matches(selector)) {
+        found.unshift(root);
+    }
+    return found;
+}
+
+RE.deferMedia = function(root) {
+    if (!RE.lazyMedia || !root.querySelectorAll) {
+        return;
+    }
+    var media = RE.matching(root, RE.MEDIA_SELECTOR);
+    for (var i = 0; i < media.length; i++) {
+        var element = media[i];
+        element.setAttribute('data-re-src', element.getAttribute('src'));
+        element.removeAttribute('src');
+        if (element.nodeName == 'IFRAME' && !element.hasAttribute('srcdoc')) {
+            element.setAttribute('srcdoc', RE.embedPlaceholder(element.getAttribute('data-re-src')));
+            element.setAttribute('data-re-srcdoc', '');
+        } else if (element.nodeName == 'VIDEO' && !element.hasAttribute('poster')) {
+            element.setAttribute('poster', RE.videoPoster || RE.DEFAULT_VIDEO_POSTER);
+            element.setAttribute('data-re-poster', '');
+        }
+        RE.mediaDeferred = true;
+    }
+}
+
+RE.deferHtml = function(html) {
+    if (!RE.lazyMedia || !/<(img|video|audio|iframe)/i.test(html)) {
+        return html;
+    }
+    var template = document.createElement('template');
+    template.innerHTML = html;
+    RE.deferMedia(template.content);
+    return template.innerHTML;
+}
+
+// Shows the video thumbnail for YouTube embeds, a dark box for other frames.
+RE.embedPlaceholder = function(url) {
+    var id = /(?:\/embed\/|[?&]v=|youtu\.be\/)([\w-]{11})/.exec(url);
+    var thumbnail = id ? '<img src="https://i.ytimg.com/vi/' + id[1] + '/hqdefault.jpg">' : '';
+    return '<style>html,body{margin:0;height:100%;background:#000}'
+        + 'img{width:100%;height:100%;object-fit:cover}</style>' + thumbnail;
+}
+
+RE.observeMedia = function(records) {
+    for (var i = 0; i < records.length; i++) {
+        var added = records[i].addedNodes;
+        for (var j = 0; j < added.length; j++) {
+            if (added[j].nodeType != Node.ELEMENT_NODE) {
+                continue;
+            }
+            var deferred = RE.matching(added[j], RE.DEFERRED_SELECTOR);
+            for (var k = 0; k < deferred.length; k++) {
+                RE.mediaObserver.observe(deferred[k]);
+            }
+        }
+    }
+}
+
+RE.onMediaVisible = function(entries) {
+    var visible = [];
+    for (var i = 0; i < entries.length; i++) {
+        if (entries[i].isIntersecting) {
+            RE.mediaObserver.unobserve(entries[i].target);
+            visible.push(entries[i].target);
+        }
+    }
+    RE.restoreMedia(visible);
+}
+
+// Loading media is not an edit: the mutations are dropped so no version or delta results.
+RE.restoreMedia = function(elements) {
+    if (elements.length == 0) {
+        return;
+    }
+    RE.syncVersion();
+    for (var i = 0; i < elements.length; i++) {
+        RE.restoreSrc(elements[i]);
+    }
+    if (RE.observer) {
+        RE.observer.takeRecords();
+    }
+}
+
+RE.restoreSrc = function(element) {
+    if (!element.hasAttribute('data-re-src')) {
+        return;
+    }
+    if (element.hasAttribute('data-re-srcdoc')) {
+        element.removeAttribute('srcdoc');
+        element.removeAttribute('data-re-srcdoc');
+    }
+    if (element.hasAttribute('data-re-poster')) {
+        element.removeAttribute('poster');
+        element.removeAttribute('data-re-poster');
+    }
+    element.setAttribute('src', element.getAttribute('data-re-src'));
+    element.removeAttribute('data-re-src');
+}
+
+RE.hasDeferredMedia = function(element) {
+    return RE.mediaDeferred
+        && (element.hasAttribute('data-re-src') || element.querySelector(RE.DEFERRED_SELECTOR) != null);
+}
+
+RE.cleanHtml = function(element, inner) {
+    if (!RE.inertDocument) {
+        RE.inertDocument = document.implementation.createHTMLDocument("");
+    }
+    var copy = RE.inertDocument.importNode(element, true);
+    var deferred = RE.matching(copy, RE.DEFERRED_SELECTOR);
+    for (var i = 0; i < deferred.length; i++) {
+        RE.restoreSrc(deferred[i]);
+    }
+    return inner ? copy.innerHTML : copy.outerHTML;
 }
 
 RE.setHtml = function(contents) {
-    RE.editor.innerHTML = decodeURIComponent(contents.replace(/\+/g, '%20'));
+    RE.stream = null;
+    RE.paste = null;
+    RE.editor.innerHTML = RE.deferHtml(decodeURIComponent(contents.replace(/\+/g, '%20')));
+}
+
+// Streaming load: chunks are parsed by an inert document and every completed top-level node
+// is moved into the editor as soon as the next one starts.
+RE.stream = null;
+
+RE.beginStream = function(id) {
+    RE.paste = null;
+    var doc = document.implementation.createHTMLDocument("");
+    var parts = null;
+    try {
+        doc.open();
+    } catch (e) {
+        // No incremental parser available, assemble the document at the end.
+        parts = [];
+    }
+    RE.stream = {"id": id, "doc": doc, "parts": parts};
+    RE.editor.innerHTML = "";
+}
+
+RE.appendStream = function(id, chunk) {
+    var stream = RE.stream;
+    if (!stream || stream.id != id) {
+        return false;
+    }
+    if (stream.parts != null) {
+        stream.parts.push(chunk);
+    } else {
+        stream.doc.write(chunk);
+        RE.moveStreamed(stream, false);
+    }
+    return true;
+}
+
+RE.moveStreamed = function(stream, all) {
+    var body = stream.doc.body;
+    if (!body) {
+        return;
+    }
+    var keep = all ? 0 : 1;
+    while (body.childNodes.length > keep) {
+        RE.deferMedia(body.firstChild);
+        RE.editor.appendChild(document.adoptNode(body.firstChild));
+    }
+}
+
+RE.endStream = function(id) {
+    var stream = RE.stream;
+    if (!stream || stream.id != id) {
+        return false;
+    }
+    RE.stream = null;
+    if (stream.parts != null) {
+        RE.editor.innerHTML = RE.deferHtml(stream.parts.join(""));
+    } else {
+        stream.doc.close();
+        RE.moveStreamed(stream, true);
+    }
+    return true;
+}
+
+// Paste interception: the clipboard content is sanitized by Java and inserted back in chunks.
+// Until the last chunk is in, deltas and content callbacks are held back, so the whole paste
+// arrives as one change. The selection is only replaced once the first chunk arrives, a paste
+// that ends without one leaves the document as it was.
+RE.PASTE_TIMEOUT = 5000;
+RE.pasteInterception = false;
+RE.pasteId = 0;
+RE.paste = null;
+
+RE.setPasteInterception = function(enabled) {
+    RE.pasteInterception = enabled;
+    if (!enabled && RE.paste) {
+        RE.endPaste(RE.paste.id);
+    }
+}
+
+RE.onPaste = function(e) {
+    var selection = window.getSelection();
+    if (!RE.pasteInterception || !e.clipboardData || selection.rangeCount == 0) {
+        return;
+    }
+    e.preventDefault();
+    if (RE.paste) {
+        RE.endPaste(RE.paste.id);
+    }
+    var range = selection.getRangeAt(0).cloneRange();
+    RE.paste = {"id": ++RE.pasteId, "range": range, "timer": null, "started": false};
+    RE.post("paste", {
+        "i": RE.pasteId,
+        "h": e.clipboardData.getData("text/html"),
+        "t": e.clipboardData.getData("text/plain")});
+}
+
+RE.pasteChunk = function(id, html) {
+    var paste = RE.paste;
+    if (!paste || paste.id != id) {
+        return false;
+    }
+    if (!paste.started) {
+        paste.started = true;
+        paste.range.deleteContents();
+    }
+    var template = document.createElement('template');
+    template.innerHTML = html;
+    RE.deferMedia(template.content);
+    var last = template.content.lastChild;
+    if (last) {
+        paste.range.insertNode(template.content);
+        paste.range.setStartAfter(last);
+        paste.range.collapse(true);
+    }
+    RE.schedulePasteTimeout(paste);
+    return true;
+}
+
+// Ends a paste that Java stopped feeding, so callbacks and deltas are not held back forever.
+// Armed by the chunks only: sanitizing may wait behind other work on Java's side.
+RE.schedulePasteTimeout = function(paste) {
+    clearTimeout(paste.timer);
+    paste.timer = setTimeout(function() {
+        if (RE.paste === paste) {
+            RE.endPaste(paste.id);
+        }
+    }, RE.PASTE_TIMEOUT);
+}
+
+RE.endPaste = function(id) {
+    var paste = RE.paste;
+    if (!paste || paste.id != id) {
+        return false;
+    }
+    RE.paste = null;
+    clearTimeout(paste.timer);
+    var selection = window.getSelection();
+    selection.removeAllRanges();
+    selection.addRange(paste.range);
+    RE.backuprange();
+
+    RE.syncVersion();
+    if (RE.deltaEnabled) {
+        RE.flushDelta();
+    }
+    RE.callback();
+    RE.scheduleStateUpdate();
+    return true;
+}
+
+// Find and replace. Every top-level node keeps the ranges of its own matches and only the nodes
+// an edit touched are searched again. Matches are highlighted with the CSS Custom Highlight API
+// where available, otherwise only the current match is shown, as the selection.
+RE.find = null;
+RE.findKey = 0;
+RE.findTimer = null;
+RE.findSent = null;
+RE.FIND_DELAY = 100;
+
+RE.setFind = function(query, matchCase) {
+    RE.syncVersion();
+    RE.findKey++;
+    RE.find = query ? {
+        "query": matchCase ? query : query.toLowerCase(),
+        "matchCase": matchCase,
+        "matches": [],
+        "current": null} : null;
+    RE.updateFind();
+    if (RE.find && RE.find.matches.length > 0) {
+        RE.find.current = RE.firstMatchAfter(RE.caretRange());
+        RE.showMatch();
+    }
+    RE.postFind();
+}
+
+RE.scheduleFind = function() {
+    if (RE.findTimer == null) {
+        RE.findTimer = setTimeout(function() {
+            RE.findTimer = null;
+            RE.updateFind();
+            RE.postFind();
+        }, RE.FIND_DELAY);
+    }
+}
+
+RE.updateFind = function() {
+    var find = RE.find;
+    var matches = [];
+    if (find) {
+        var nodes = RE.editor.childNodes;
+        for (var i = 0; i < nodes.length; i++) {
+            var node = nodes[i];
+            if (node.__reFindKey !== RE.findKey || node.__reFindDirty) {
+                RE.indexBlock(node, find);
+            }
+            Array.prototype.push.apply(matches, node.__reMatches);
+        }
+        var current = find.current;
+        find.matches = matches;
+        if (current && matches.indexOf(current) < 0) {
+            // The block of the current match changed, go on from where it was.
+            find.current = matches.length > 0 ? RE.firstMatchAfter(current) : null;
+        }
+    }
+    if (window.CSS && CSS.highlights) {
+        var highlight = new Highlight();
+        for (var i = 0; i < matches.length; i++) {
+            highlight.add(matches[i]);
+        }
+        CSS.highlights.set("re-find", highlight);
+        if (!find || !find.current) {
+            CSS.highlights.delete("re-find-current");
+        }
+    }
+}
+
+RE.indexBlock = function(node, find) {
+    node.__reFindKey = RE.findKey;
+    node.__reFindDirty = false;
+    node.__reMatches = [];
+    var texts = [];
+    if (node.nodeType == Node.TEXT_NODE) {
+        texts.push(node);
+    } else if (node.nodeType == Node.ELEMENT_NODE) {
+        var walker = document.createTreeWalker(node, NodeFilter.SHOW_TEXT, null, false);
+        while (walker.nextNode()) {
+            texts.push(walker.currentNode);
+        }
+    }
+    if (texts.length == 0) {
+        return;
+    }
+    var starts = [];
+    var text = "";
+    for (var i = 0; i < texts.length; i++) {
+        starts.push(text.length);
+        text += texts[i].data;
+    }
+    text = text.replace(/\u00a0/g, ' ');
+    if (!find.matchCase) {
+        var lower = text.toLowerCase();
+        // Offsets must stay those of the text nodes.
+        text = lower.length == text.length ? lower : text;
+    }
+
+    var query = find.query;
+    var t = 0;
+    for (var index = text.indexOf(query); index >= 0; index = text.indexOf(query, index + query.length)) {
+        while (t + 1 < texts.length && starts[t + 1] <= index) {
+            t++;
+        }
+        var e = t;
+        var end = index + query.length;
+        while (e + 1 < texts.length && starts[e + 1] < end) {
+            e++;
+        }
+        var range = document.createRange();
+        range.setStart(texts[t], index - starts[t]);
+        range.setEnd(texts[e], end - starts[e]);
+        node.__reMatches.push(range);
+    }
+}
+
+RE.caretRange = function() {
+    var selection = window.getSelection();
+    if (selection.rangeCount > 0 && RE.editor.contains(selection.getRangeAt(0).startContainer)) {
+        return selection.getRangeAt(0);
+    }
+    var range = document.createRange();
+    range.setStart(RE.editor, 0);
+    return range;
+}
+
+// The first match starting at or after the start of range, wrapping around to the first one.
+RE.firstMatchAfter = function(range) {
+    var matches = RE.find.matches;
+    for (var i = 0; i < matches.length; i++) {
+        if (matches[i].compareBoundaryPoints(Range.START_TO_START, range) >= 0) {
+            return matches[i];
+        }
+    }
+    return matches[0];
+}
+
+RE.findMove = function(step) {
+    var find = RE.find;
+    if (!find) {
+        return;
+    }
+    RE.syncVersion();
+    RE.updateFind();
+    var count = find.matches.length;
+    if (count > 0) {
+        var index = find.matches.indexOf(find.current);
+        find.current = find.matches[index < 0 ? 0 : (index + step + count) % count];
+        RE.showMatch();
+    }
+    RE.postFind();
+}
+
+RE.showMatch = function() {
+    var range = RE.find.current;
+    if (window.CSS && CSS.highlights) {
+        CSS.highlights.set("re-find-current", new Highlight(range));
+    } else {
+        var selection = window.getSelection();
+        selection.removeAllRanges();
+        selection.addRange(range.cloneRange());
+    }
+    var rect = range.getBoundingClientRect();
+    if (rect.top < 0 || rect.bottom > window.innerHeight) {
+        window.scrollBy(0, rect.top - window.innerHeight / 3);
+    }
+}
+
+// Replaces the current match like typing would, then shows the next one.
+RE.replaceMatch = function(replacement) {
+    var find = RE.find;
+    if (!find) {
+        return;
+    }
+    RE.syncVersion();
+    RE.updateFind();
+    if (!find.current) {
+        RE.postFind();
+        return;
+    }
+    var selection = window.getSelection();
+    selection.removeAllRanges();
+    selection.addRange(find.current.cloneRange());
+    RE.execCommand(replacement ? 'insertText' : 'delete', false, replacement);
+    RE.syncVersion();
+    var caret = window.getSelection().rangeCount > 0 ? window.getSelection().getRangeAt(0) : null;
+    find.current = null;
+    RE.updateFind();
+    if (caret && find.matches.length > 0) {
+        find.current = RE.firstMatchAfter(caret);
+        RE.showMatch();
+    }
+    RE.postFind();
+}
+
+// Replaces every match in one pass over the DOM: the mutations arrive as a single batch, so the
+// change is one delta and one step of the editor-managed history.
+RE.replaceAllMatches = function(replacement) {
+    var find = RE.find;
+    if (!find) {
+        return;
+    }
+    RE.syncVersion();
+    RE.updateFind();
+    var matches = find.matches;
+    // Backwards, an edit never moves the matches before it.
+    for (var i = matches.length - 1; i >= 0; i--) {
+        matches[i].deleteContents();
+        if (replacement) {
+            matches[i].insertNode(document.createTextNode(replacement));
+        }
+    }
+    if (matches.length > 0) {
+        RE.syncVersion();
+        RE.callback();
+    }
+    find.current = null;
+    RE.updateFind();
+    RE.postFind();
+}
+
+RE.postFind = function() {
+    var find = RE.find;
+    var text = find ? (find.matches.indexOf(find.current) + 1) + "," + find.matches.length : "0,0";
+    if (text != RE.findSent) {
+        RE.findSent = text;
+        RE.post("find", text);
+    }
 }
 
 RE.getHtml = function() {
-    return RE.editor.innerHTML;
+    return RE.hasDeferredMedia(RE.editor) ? RE.cleanHtml(RE.editor, true) : RE.editor.innerHTML;
 }
 
 RE.getText = function() {
     return RE.editor.innerText;
 }
 
+// Applies mutations the observer has not delivered yet, so RE.version is current.
+RE.syncVersion = function() {
+    if (!RE.observer) {
+        RE.version++;
+        return;
+    }
+    var records = RE.observer.takeRecords();
+    if (records.length > 0) {
+        RE.onMutations(records);
+    }
+}
+
+// The content is left out when the caller already has this version.
+RE.readHtml = function(knownVersion) {
+    RE.syncVersion();
+    return {"v": RE.version, "c": knownVersion == RE.version ? null : RE.getHtml()};
+}
+
+RE.readText = function(knownVersion) {
+    RE.syncVersion();
+    return {"v": RE.version, "c": knownVersion == RE.version ? null : RE.getText()};
+}
+
 RE.setBaseTextColor = function(color) {
     RE.editor.style.color  = color;
 }
@@ -90,94 +1080,194 @@ RE.setPlaceholder = function(placeholder) {
     RE.editor.setAttribute("placeholder", placeholder);
 }
 
+// Sets or, for null values, removes custom properties used by style.css.
+RE.setStyle = function(properties) {
+    var style = document.documentElement.style;
+    for (var name in properties) {
+        if (properties[name] == null) {
+            style.removeProperty(name);
+        } else {
+            style.setProperty(name, properties[name]);
+        }
+    }
+}
+
+RE.loadCSS = function(href) {
+    var links = document.querySelectorAll("link.re-css");
+    for (var i = 0; i < links.length; i++) {
+        if (links[i].getAttribute("href") == href) {
+            return;
+        }
+    }
+    var link = document.createElement("link");
+    link.rel = "stylesheet";
+    link.type = "text/css";
+    link.href = href;
+    link.media = "all";
+    link.className = "re-css";
+    document.head.appendChild(link);
+}
+
 RE.setInputEnabled = function(inputEnabled) {
     RE.editor.contentEditable = String(inputEnabled);
 }
 
+// Runs an editing command and refreshes the formatting state, which a command can change
+// without moving the selection.
+RE.execCommand = function(command, showUI, value) {
+    var result = document.execCommand(command, showUI, value);
+    RE.stateKey = null;
+    RE.scheduleStateUpdate();
+    return result;
+}
+
 RE.undo = function() {
-    document.execCommand('undo', false, null);
+    RE.execCommand('undo', false, null);
+}
+
+// Editor-managed history. Undo and redo are kept on the Java side as block deltas, the
+// browser's own history is bypassed while it is enabled.
+RE.historyEnabled = false;
+RE.applyingHistory = false;
+
+RE.setHistoryEnabled = function(enabled) {
+    RE.historyEnabled = enabled;
+}
+
+RE.onBeforeInput = function(e) {
+    if (RE.historyEnabled && (e.inputType == 'historyUndo' || e.inputType == 'historyRedo')) {
+        e.preventDefault();
+        RE.post("history", e.inputType == 'historyUndo' ? "undo" : "redo");
+    }
+}
+
+// Replaces deleteCount top-level nodes at start with blocks, if the document is still at the
+// version the step was computed for. The resulting delta is marked so it is not recorded again.
+RE.applyDelta = function(version, start, deleteCount, blocks) {
+    RE.syncVersion();
+    var nodes = RE.editor.childNodes;
+    if (RE.deltaVersion != version || start + deleteCount > nodes.length || RE.paste) {
+        RE.post("history", "rejected");
+        return;
+    }
+    for (var i = 0; i < deleteCount; i++) {
+        RE.editor.removeChild(nodes[start]);
+    }
+    var fragment = document.createDocumentFragment();
+    var template = document.createElement('template');
+    for (var i = 0; i < blocks.length; i++) {
+        template.innerHTML = blocks[i];
+        RE.deferMedia(template.content);
+        fragment.appendChild(template.content);
+    }
+    var last = fragment.lastChild;
+    var next = nodes[start] || null;
+    RE.editor.insertBefore(fragment, next);
+
+    RE.applyingHistory = true;
+    try {
+        RE.syncVersion();
+    } finally {
+        RE.applyingHistory = false;
+    }
+    RE.post("history", "applied");
+
+    var range = document.createRange();
+    if (last) {
+        range.selectNodeContents(last);
+        range.collapse(false);
+    } else if (next) {
+        range.setStart(next, 0);
+    } else {
+        range.selectNodeContents(RE.editor);
+        range.collapse(false);
+    }
+    var selection = window.getSelection();
+    selection.removeAllRanges();
+    selection.addRange(range);
+    RE.scheduleStateUpdate();
 }
 
 RE.redo = function() {
-    document.execCommand('redo', false, null);
+    RE.execCommand('redo', false, null);
 }
 
 RE.setBold = function() {
-    document.execCommand('bold', false, null);
+    RE.execCommand('bold', false, null);
 }
 
 RE.setItalic = function() {
-    document.execCommand('italic', false, null);
+    RE.execCommand('italic', false, null);
 }
 
 RE.setSubscript = function() {
-    document.execCommand('subscript', false, null);
+    RE.execCommand('subscript', false, null);
 }
 
 RE.setSuperscript = function() {
-    document.execCommand('superscript', false, null);
+    RE.execCommand('superscript', false, null);
 }
 
 RE.setStrikeThrough = function() {
-    document.execCommand('strikeThrough', false, null);
+    RE.execCommand('strikeThrough', false, null);
 }
 
 RE.setUnderline = function() {
-    document.execCommand('underline', false, null);
+    RE.execCommand('underline', false, null);
 }
 
 RE.setBullets = function() {
-    document.execCommand('insertUnorderedList', false, null);
+    RE.execCommand('insertUnorderedList', false, null);
 }
 
 RE.setNumbers = function() {
-    document.execCommand('insertOrderedList', false, null);
+    RE.execCommand('insertOrderedList', false, null);
 }
 
 RE.setTextColor = function(color) {
     RE.restorerange();
-    document.execCommand("styleWithCSS", null, true);
-    document.execCommand('foreColor', false, color);
-    document.execCommand("styleWithCSS", null, false);
+    RE.execCommand("styleWithCSS", null, true);
+    RE.execCommand('foreColor', false, color);
+    RE.execCommand("styleWithCSS", null, false);
 }
 
 RE.setTextBackgroundColor = function(color) {
     RE.restorerange();
-    document.execCommand("styleWithCSS", null, true);
-    document.execCommand('hiliteColor', false, color);
-    document.execCommand("styleWithCSS", null, false);
+    RE.execCommand("styleWithCSS", null, true);
+    RE.execCommand('hiliteColor', false, color);
+    RE.execCommand("styleWithCSS", null, false);
 }
 
 RE.setFontSize = function(fontSize){
-    document.execCommand("fontSize", false, fontSize);
+    RE.execCommand("fontSize", false, fontSize);
 }
 
 RE.setHeading = function(heading) {
-    document.execCommand('formatBlock', false, '<h'+heading+'>');
+    RE.execCommand('formatBlock', false, '<h'+heading+'>');
 }
 
 RE.setIndent = function() {
-    document.execCommand('indent', false, null);
+    RE.execCommand('indent', false, null);
 }
 
 RE.setOutdent = function() {
-    document.execCommand('outdent', false, null);
+    RE.execCommand('outdent', false, null);
 }
 
 RE.setJustifyLeft = function() {
-    document.execCommand('justifyLeft', false, null);
+    RE.execCommand('justifyLeft', false, null);
 }
 
 RE.setJustifyCenter = function() {
-    document.execCommand('justifyCenter', false, null);
+    RE.execCommand('justifyCenter', false, null);
 }
 
 RE.setJustifyRight = function() {
-    document.execCommand('justifyRight', false, null);
+    RE.execCommand('justifyRight', false, null);
 }
 
 RE.setBlockquote = function() {
-    document.execCommand('formatBlock', false, '<blockquote>');
+    RE.execCommand('formatBlock', false, '<blockquote>');
 }
 
 RE.insertImage = function(url, alt) {
@@ -232,14 +1322,14 @@ RE.insertYoutubeVideoWH = function(url, width, height) {
 
 RE.insertHTML = function(html) {
     RE.restorerange();
-    document.execCommand('insertHTML', false, html);
+    RE.execCommand('insertHTML', false, RE.deferHtml(html));
 }
 
 RE.insertLink = function(url, title) {
     RE.restorerange();
     var sel = document.getSelection();
     if (sel.toString().length == 0) {
-        document.execCommand("insertHTML",false,"<a href='"+url+"'>"+title+"</a>");
+        RE.execCommand("insertHTML",false,"<a href='"+url+"'>"+title+"</a>");
     } else if (sel.rangeCount) {
        var el = document.createElement("a");
        el.setAttribute("href", url);
@@ -255,7 +1345,7 @@ RE.insertLink = function(url, title) {
 
 RE.setTodo = function(text) {
     var html = '<input type="checkbox" name="'+ text +'" value="'+ text +'"/> &nbsp;';
-    document.execCommand('insertHTML', false, html);
+    RE.execCommand('insertHTML', false, html);
 }
 
 RE.prepareInsert = function() {
@@ -283,53 +1373,170 @@ RE.restorerange = function(){
     selection.addRange(range);
 }
 
-RE.enabledEditingItems = function(e) {
-    var items = [];
-    if (document.queryCommandState('bold')) {
-        items.push('bold');
+// The selection is reported to Java as top-level node index and text offset within that node,
+// so it can be saved with the instance state. Debounced, it changes with every key.
+RE.selectionTracking = false;
+RE.selectionTimer = null;
+RE.selectionSent = null;
+
+RE.setSelectionTracking = function(enabled) {
+    RE.selectionTracking = enabled;
+    RE.selectionSent = null;
+    if (enabled) {
+        RE.scheduleSelectionReport();
     }
-    if (document.queryCommandState('italic')) {
-        items.push('italic');
+}
+
+RE.scheduleSelectionReport = function() {
+    if (!RE.selectionTracking) {
+        return;
     }
-    if (document.queryCommandState('subscript')) {
-        items.push('subscript');
+    clearTimeout(RE.selectionTimer);
+    RE.selectionTimer = setTimeout(RE.reportSelection, 300);
+}
+
+RE.selectionPoint = function(container, offset) {
+    var block = RE.topLevelNode(container);
+    if (!block) {
+        return [offset, 0];
     }
-    if (document.queryCommandState('superscript')) {
-        items.push('superscript');
+    var range = document.createRange();
+    range.setStart(block, 0);
+    range.setEnd(container, offset);
+    return [Array.prototype.indexOf.call(RE.editor.childNodes, block), range.toString().length];
+}
+
+RE.reportSelection = function() {
+    RE.selectionTimer = null;
+    var selection = window.getSelection();
+    if (!RE.selectionTracking || selection.rangeCount == 0) {
+        return;
     }
-    if (document.queryCommandState('strikeThrough')) {
-        items.push('strikeThrough');
+    var range = selection.getRangeAt(0);
+    if (!RE.editor.contains(range.startContainer) || !RE.editor.contains(range.endContainer)) {
+        return;
     }
-    if (document.queryCommandState('underline')) {
-        items.push('underline');
+    var start = RE.selectionPoint(range.startContainer, range.startOffset);
+    var end = range.collapsed ? start : RE.selectionPoint(range.endContainer, range.endOffset);
+    var text = start.concat(end).join(',');
+    if (text != RE.selectionSent) {
+        RE.selectionSent = text;
+        RE.post("selection", text);
     }
-    if (document.queryCommandState('insertOrderedList')) {
-        items.push('orderedList');
+}
+
+RE.selectionPosition = function(index, offset) {
+    var nodes = RE.editor.childNodes;
+    if (index >= nodes.length) {
+        return {"node": RE.editor, "offset": nodes.length};
     }
-    if (document.queryCommandState('insertUnorderedList')) {
-        items.push('unorderedList');
+    var block = nodes[index];
+    if (block.nodeType == Node.TEXT_NODE) {
+        return {"node": block, "offset": Math.min(offset, block.length)};
     }
-    if (document.queryCommandState('justifyCenter')) {
-        items.push('justifyCenter');
+    var walker = document.createTreeWalker(block, NodeFilter.SHOW_TEXT, null, false);
+    var last = null;
+    while (walker.nextNode()) {
+        last = walker.currentNode;
+        if (offset <= last.length) {
+            return {"node": last, "offset": offset};
+        }
+        offset -= last.length;
     }
-    if (document.queryCommandState('justifyFull')) {
-        items.push('justifyFull');
+    return last ? {"node": last, "offset": last.length} : {"node": block, "offset": 0};
+}
+
+// Puts back a selection reported by reportSelection and the scroll position in device pixels.
+RE.restoreState = function(selection, scrollY) {
+    if (selection) {
+        var start = RE.selectionPosition(selection[0], selection[1]);
+        var end = RE.selectionPosition(selection[2], selection[3]);
+        var range = document.createRange();
+        range.setStart(start.node, start.offset);
+        range.setEnd(end.node, end.offset);
+        var current = window.getSelection();
+        current.removeAllRanges();
+        current.addRange(range);
+        RE.backuprange();
     }
-    if (document.queryCommandState('justifyLeft')) {
-        items.push('justifyLeft');
+    window.scrollTo(0, scrollY / (window.devicePixelRatio || 1));
+}
+
+// Bits follow the ordinals of RichEditor.Type.
+RE.stateCommands = [
+    ['bold', 0],
+    ['italic', 1],
+    ['subscript', 2],
+    ['superscript', 3],
+    ['strikeThrough', 4],
+    ['underline', 5],
+    ['insertOrderedList', 12],
+    ['insertUnorderedList', 13],
+    ['justifyCenter', 14],
+    ['justifyFull', 15],
+    ['justifyLeft', 16],
+    ['justifyRight', 17]];
+RE.STATE_H1 = 6;
+RE.lastState = -1;
+RE.stateKey = null;
+RE.stateScheduled = false;
+
+// Coalesces state updates to at most one per frame.
+RE.scheduleStateUpdate = function() {
+    if (RE.stateScheduled) {
+        return;
     }
-    if (document.queryCommandState('justifyRight')) {
-        items.push('justifyRight');
+    RE.stateScheduled = true;
+    if (window.requestAnimationFrame) {
+        window.requestAnimationFrame(RE.updateState);
+    } else {
+        setTimeout(RE.updateState, 16);
+    }
+}
+
+// Skips the queryCommandState calls when neither the selection nor the document changed.
+RE.updateState = function() {
+    RE.stateScheduled = false;
+    var selection = window.getSelection();
+    if (selection.rangeCount == 0) {
+        return;
     }
-    if (document.queryCommandState('insertHorizontalRule')) {
-        items.push('horizontalRule');
+    var range = selection.getRangeAt(0);
+    if (!RE.editor.contains(range.startContainer)) {
+        return;
     }
-    var formatBlock = document.queryCommandValue('formatBlock');
-    if (formatBlock.length > 0) {
-        items.push(formatBlock);
+    RE.syncVersion();
+    var key = RE.stateKey;
+    if (key && key.version == RE.version
+        && key.startContainer === range.startContainer && key.startOffset == range.startOffset
+        && key.endContainer === range.endContainer && key.endOffset == range.endOffset) {
+        return;
+    }
+    RE.stateKey = {
+        "version": RE.version,
+        "startContainer": range.startContainer,
+        "startOffset": range.startOffset,
+        "endContainer": range.endContainer,
+        "endOffset": range.endOffset};
+    RE.enabledEditingItems();
+}
+
+RE.enabledEditingItems = function(e) {
+    var state = 0;
+    for (var i = 0; i < RE.stateCommands.length; i++) {
+        if (document.queryCommandState(RE.stateCommands[i][0])) {
+            state |= 1 << RE.stateCommands[i][1];
+        }
+    }
+    var heading = /^h([1-6])$/i.exec(document.queryCommandValue('formatBlock'));
+    if (heading) {
+        state |= 1 << (RE.STATE_H1 + parseInt(heading[1]) - 1);
     }
 
-    window.location.href = "re-state://" + encodeURI(items.join(','));
+    if (state != RE.lastState) {
+        RE.lastState = state;
+        RE.post("state", String(state));
+    }
 }
 
 RE.focus = function() {
@@ -347,15 +1554,78 @@ RE.blurFocus = function() {
 }
 
 RE.removeFormat = function() {
-    document.execCommand('removeFormat', false, null);
+    RE.execCommand('removeFormat', false, null);
+}
+
+// Puts the editor back into its initial state for reuse. The element is replaced, which also
+// leaves the browser's undo history behind.
+RE.reset = function() {
+    RE.stream = null;
+    RE.find = null;
+    RE.findSent = null;
+    if (window.CSS && CSS.highlights) {
+        CSS.highlights.clear();
+    }
+    RE.paste = null;
+    RE.pasteInterception = false;
+    RE.deltaEnabled = false;
+    RE.blockNodes = [];
+    RE.blockHtml = [];
+    RE.contentCallbackEnabled = true;
+    RE.statsEnabled = false;
+    RE.statsSent = null;
+    RE.historyEnabled = false;
+    RE.selectionSent = null;
+    RE.longDocument = false;
+    RE.lazyMedia = false;
+    RE.mediaDeferred = false;
+    RE.videoPoster = null;
+    if (RE.mediaObserver) {
+        RE.mediaObserver.disconnect();
+    }
+    document.documentElement.removeAttribute("style");
+    RE.lastState = -1;
+    RE.stateKey = null;
+    RE.currentSelection = {
+        "startContainer": 0,
+        "startOffset": 0,
+        "endContainer": 0,
+        "endOffset": 0};
+
+    var editor = document.createElement("div");
+    editor.id = "editor";
+    editor.contentEditable = "true";
+    RE.editor.parentNode.replaceChild(editor, RE.editor);
+    RE.editor = editor;
+    RE.attach();
+
+    document.body.removeAttribute("style");
+    var links = document.querySelectorAll("link.re-css");
+    for (var i = 0; i < links.length; i++) {
+        links[i].parentNode.removeChild(links[i]);
+    }
+    RE.version++;
 }
 
 // Event Listeners
-RE.editor.addEventListener("input", RE.callback);
-RE.editor.addEventListener("keyup", function(e) {
-    var KEY_LEFT = 37, KEY_RIGHT = 39;
-    if (e.which == KEY_LEFT || e.which == KEY_RIGHT) {
-        RE.enabledEditingItems(e);
+RE.onBlur = function() {
+    RE.post("blur", "");
+    RE.flushOutbox();
+}
+
+RE.attach = function() {
+    if (window.MutationObserver) {
+        if (RE.observer) {
+            RE.observer.disconnect();
+        }
+        RE.observer = new MutationObserver(RE.onMutations);
+        RE.observer.observe(RE.editor, {childList: true, subtree: true, characterData: true, attributes: true});
     }
-});
-RE.editor.addEventListener("click", RE.enabledEditingItems);
+    RE.editor.addEventListener("input", RE.callback);
+    RE.editor.addEventListener("input", RE.scheduleStateUpdate);
+    RE.editor.addEventListener("blur", RE.onBlur);
+    RE.editor.addEventListener("beforeinput", RE.onBeforeInput);
+    RE.editor.addEventListener("paste", RE.onPaste);
+}
+
+RE.attach();
@@ -0,0 +1,494 @@
+package jp.wasabeef.richeditor;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Copyright (C) 2020 Wasabeef
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Saves a draft as it is edited: every change is appended to a journal file as a small
+ * checksummed record of the blocks it replaced, and the journal is periodically compacted into
+ * a snapshot of the whole document. All file access happens on a background thread owned by the
+ * journal, the UI thread only hands over the change.
+ * <p>
+ * Attach it with {@link RichEditor#setAutosaveJournal(AutosaveJournal)} and read the last saved
+ * state with {@link #recover(OnRecoverListener)} when the screen starts.
+ * <p>
+ * The journal's thread only runs while there is work and ends after half a minute idle, so
+ * nothing has to be shut down: call {@link #close()} when the draft is done with and let the
+ * journal be garbage collected.
+ */
+public final class AutosaveJournal {
+
+  /**
+   * When written records are forced to the storage device. Records reach the operating system
+   * as soon as they are written, so the process dying never loses them; the policy only matters
+   * when the device loses power.
+   */
+  public enum SyncPolicy {
+    /**
+     * Every record is synced before the next one is written.
+     */
+    EVERY_RECORD,
+    /**
+     * Synced at most once per second, up to the last second of edits can be lost.
+     */
+    PERIODIC,
+    /**
+     * Synced only when compacting and on {@link #close()}.
+     */
+    ON_COMPACTION
+  }
+
+  public interface OnRecoverListener {
+
+    /**
+     * @param html the last saved document, or null if nothing was saved
+     */
+    void onRecover(String html);
+  }
+
+  private static final String TAG = "AutosaveJournal";
+  private static final long PERIODIC_SYNC_MILLIS = 1000;
+  private static final long IDLE_MILLIS = 30 * 1000;
+  private static final int MAX_RECORD_BYTES = 256 * 1024 * 1024;
+
+  private static final byte RECORD_SNAPSHOT = 1;
+  private static final byte RECORD_HEADER = 2;
+  private static final byte RECORD_DELTA = 3;
+
+  private final File snapshotFile;
+  private final File journalFile;
+  private final ScheduledThreadPoolExecutor writer;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+  private volatile SyncPolicy syncPolicy = SyncPolicy.PERIODIC;
+  private volatile long minJournalBytes = 64 * 1024;
+  private volatile float maxJournalRatio = 1f;
+
+  // Writer thread only.
+  private final BlockDocument document = new BlockDocument();
+  private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+  private final CRC32 crc = new CRC32();
+  private final Random random = new Random();
+  private FileOutputStream journal;
+  private long journalBytes;
+  private long snapshotBytes;
+  private long lastSync;
+  private boolean syncScheduled;
+  private boolean dirty;
+
+  private final Runnable syncTask = new Runnable() {
+    @Override
+    public void run() {
+      syncScheduled = false;
+      sync(journal);
+    }
+  };
+
+  /**
+   * @param directory where the files are kept, usually below {@code Context#getFilesDir()}
+   * @param name      the draft, one journal per name
+   */
+  public AutosaveJournal(File directory, String name) {
+    snapshotFile = new File(directory, name + ".snapshot");
+    journalFile = new File(directory, name + ".journal");
+    writer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "RichEditor-Autosave");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    // Like EditorExecutor, the thread ends when idle, so a journal can simply be dropped.
+    writer.setKeepAliveTime(IDLE_MILLIS, TimeUnit.MILLISECONDS);
+    writer.allowCoreThreadTimeOut(true);
+  }
+
+  public void setSyncPolicy(SyncPolicy policy) {
+    syncPolicy = policy;
+  }
+
+  /**
+   * The journal is compacted into a snapshot once it is larger than both {@code minBytes} and
+   * {@code maxRatio} times the last snapshot, which bounds the bytes written per byte of
+   * document. Defaults to 64 KB and 1.
+   */
+  public void setCompaction(long minBytes, float maxRatio) {
+    minJournalBytes = minBytes;
+    maxJournalRatio = maxRatio;
+  }
+
+  /**
+   * Reads the last saved document on the journal's thread and delivers it on the main thread,
+   * after any change appended before this call has been written.
+   */
+  public void recover(final OnRecoverListener listener) {
+    writer.execute(new Runnable() {
+      @Override
+      public void run() {
+        String html = null;
+        try {
+          html = recover();
+        } catch (IOException e) {
+          Log.e(TAG, "Could not recover " + snapshotFile.getName(), e);
+        }
+        final String result = html;
+        mainHandler.post(new Runnable() {
+          @Override
+          public void run() {
+            listener.onRecover(result);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Reads the last saved document. This does file I/O, do not call it on the UI thread.
+   *
+   * @return the document, or null if nothing was saved
+   */
+  public String recover() throws IOException {
+    BlockDocument recovered = new BlockDocument();
+    long id = 0;
+    boolean found = false;
+
+    if (snapshotFile.exists()) {
+      DataInputStream in = open(snapshotFile);
+      try {
+        DataInputStream record = readRecord(in);
+        if (record != null && record.readByte() == RECORD_SNAPSHOT) {
+          id = record.readLong();
+          recovered.apply(readDelta(record));
+          found = true;
+        }
+      } finally {
+        in.close();
+      }
+    }
+
+    if (journalFile.exists()) {
+      DataInputStream in = open(journalFile);
+      try {
+        DataInputStream record = readRecord(in);
+        // A journal left over from before the last compaction belongs to an older snapshot.
+        if (record != null && record.readByte() == RECORD_HEADER && record.readLong() == id) {
+          while ((record = readRecord(in)) != null && record.readByte() == RECORD_DELTA) {
+            if (!recovered.apply(readDelta(record))) {
+              Log.w(TAG, "Journal out of sequence, recovered up to version "
+                + recovered.getVersion());
+              break;
+            }
+            found = true;
+          }
+        }
+      } finally {
+        in.close();
+      }
+    }
+    return found ? recovered.getHtml() : null;
+  }
+
+  /**
+   * Syncs and closes the files. The journal can be used again afterwards, the next change
+   * starts a new snapshot.
+   */
+  public void close() {
+    writer.execute(new Runnable() {
+      @Override
+      public void run() {
+        closeJournal();
+      }
+    });
+  }
+
+  /**
+   * Deletes the saved draft, for example once it was stored elsewhere.
+   */
+  public void delete() {
+    writer.execute(new Runnable() {
+      @Override
+      public void run() {
+        closeJournal();
+        document.clear();
+        if ((snapshotFile.exists() && !snapshotFile.delete())
+          || (journalFile.exists() && !journalFile.delete())) {
+          Log.w(TAG, "Could not delete " + snapshotFile.getName());
+        }
+      }
+    });
+  }
+
+  /**
+   * Queues a change the editor made, called on the UI thread.
+   */
+  void append(final ContentDelta delta) {
+    writer.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          write(delta);
+        } catch (IOException e) {
+          // The document is kept, the next change writes it to a fresh snapshot.
+          Log.e(TAG, "Could not write " + journalFile.getName(), e);
+          closeJournal();
+        }
+      }
+    });
+  }
+
+  /**
+   * Forces written records to the device, called when the editor goes away.
+   */
+  void sync() {
+    writer.execute(syncTask);
+  }
+
+  /**
+   * Blocks until everything queued before this call is done, for tests.
+   */
+  void await() throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(1);
+    writer.execute(new Runnable() {
+      @Override
+      public void run() {
+        done.countDown();
+      }
+    });
+    done.await();
+  }
+
+  private void write(ContentDelta delta) throws IOException {
+    if (delta.isReset()) {
+      document.apply(delta);
+      compact();
+      return;
+    }
+    if (!document.apply(delta)) {
+      // Nothing to build on, the editor sends a reset when a journal is attached.
+      return;
+    }
+    if (journal == null) {
+      // Closed, or the last write failed: the journal on disk may not match the document.
+      compact();
+      return;
+    }
+
+    buffer.reset();
+    DataOutputStream out = new DataOutputStream(buffer);
+    out.writeByte(RECORD_DELTA);
+    writeDelta(out, delta.getBaseVersion(), delta.getVersion(), delta.getStart(),
+      delta.getDeleteCount(), delta.getBlocks());
+    journalBytes += writeRecord(journal, buffer);
+    dirty = true;
+
+    if (journalBytes > Math.max(minJournalBytes, (long) (snapshotBytes * maxJournalRatio))) {
+      compact();
+      return;
+    }
+    switch (syncPolicy) {
+      case EVERY_RECORD:
+        sync(journal);
+        break;
+      case PERIODIC:
+        long wait = lastSync + PERIODIC_SYNC_MILLIS - SystemClock.uptimeMillis();
+        if (wait <= 0) {
+          sync(journal);
+        } else if (!syncScheduled) {
+          syncScheduled = true;
+          writer.schedule(syncTask, wait, TimeUnit.MILLISECONDS);
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * Writes the document to a new snapshot and starts an empty journal for it. Each file is
+   * written aside and renamed into place, a crash in between leaves the previous state intact.
+   */
+  private void compact() throws IOException {
+    closeJournal();
+    long id = random.nextLong();
+    File directory = snapshotFile.getParentFile();
+    if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create " + directory);
+    }
+
+    buffer.reset();
+    DataOutputStream out = new DataOutputStream(buffer);
+    out.writeByte(RECORD_SNAPSHOT);
+    out.writeLong(id);
+    writeDelta(out, ContentDelta.NO_VERSION, document.getVersion(), 0, 0, document.getBlocks());
+    snapshotBytes = replace(snapshotFile, buffer);
+
+    // Until this rename, the old journal is still read with the old snapshot's id and ignored.
+    buffer.reset();
+    out.writeByte(RECORD_HEADER);
+    out.writeLong(id);
+    journalBytes = replace(journalFile, buffer);
+    journal = new FileOutputStream(journalFile, true);
+    lastSync = SystemClock.uptimeMillis();
+  }
+
+  private long replace(File file, ByteArrayOutputStream record) throws IOException {
+    File temp = new File(file.getPath() + ".tmp");
+    FileOutputStream out = new FileOutputStream(temp);
+    long written;
+    try {
+      written = writeRecord(out, record);
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+    if (!temp.renameTo(file)) {
+      throw new IOException("Could not replace " + file);
+    }
+    return written;
+  }
+
+  private void sync(FileOutputStream out) {
+    if (out == null || !dirty) {
+      return;
+    }
+    try {
+      out.getFD().sync();
+      dirty = false;
+    } catch (IOException e) {
+      Log.e(TAG, "Could not sync " + journalFile.getName(), e);
+    }
+    lastSync = SystemClock.uptimeMillis();
+  }
+
+  private void closeJournal() {
+    if (journal == null) {
+      return;
+    }
+    sync(journal);
+    try {
+      journal.close();
+    } catch (IOException e) {
+      // No handling
+    }
+    journal = null;
+  }
+
+  /**
+   * Frames a record as its length, its CRC32 and its bytes, so a torn write at the end of the
+   * journal is detected on recovery.
+   */
+  private long writeRecord(FileOutputStream out, ByteArrayOutputStream record) throws IOException {
+    byte[] bytes = record.toByteArray();
+    crc.reset();
+    crc.update(bytes);
+    byte[] frame = new byte[8 + bytes.length];
+    putInt(frame, 0, bytes.length);
+    putInt(frame, 4, (int) crc.getValue());
+    System.arraycopy(bytes, 0, frame, 8, bytes.length);
+    out.write(frame);
+    return frame.length;
+  }
+
+  private static void putInt(byte[] bytes, int offset, int value) {
+    bytes[offset] = (byte) (value >>> 24);
+    bytes[offset + 1] = (byte) (value >>> 16);
+    bytes[offset + 2] = (byte) (value >>> 8);
+    bytes[offset + 3] = (byte) value;
+  }
+
+  private static DataInputStream open(File file) throws IOException {
+    return new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+  }
+
+  /**
+   * @return the next record, or null at the end of the file or at a damaged record
+   */
+  private static DataInputStream readRecord(DataInputStream in) throws IOException {
+    byte[] bytes;
+    int checksum;
+    try {
+      int length = in.readInt();
+      checksum = in.readInt();
+      if (length < 1 || length > MAX_RECORD_BYTES) {
+        return null;
+      }
+      bytes = new byte[length];
+      in.readFully(bytes);
+    } catch (EOFException e) {
+      return null;
+    }
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    if ((int) crc.getValue() != checksum) {
+      return null;
+    }
+    return new DataInputStream(new ByteArrayInputStream(bytes));
+  }
+
+  private static void writeDelta(DataOutputStream out, long baseVersion, long version, int start,
+                                 int deleteCount, List<String> blocks) throws IOException {
+    out.writeLong(baseVersion);
+    out.writeLong(version);
+    out.writeInt(start);
+    out.writeInt(deleteCount);
+    out.writeInt(blocks.size());
+    for (String block : blocks) {
+      byte[] utf8 = block.getBytes("UTF-8");
+      out.writeInt(utf8.length);
+      out.write(utf8);
+    }
+  }
+
+  private static ContentDelta readDelta(DataInputStream in) throws IOException {
+    long baseVersion = in.readLong();
+    long version = in.readLong();
+    int start = in.readInt();
+    int deleteCount = in.readInt();
+    int count = in.readInt();
+    List<String> blocks = new ArrayList<>(Math.max(0, Math.min(count, 1024)));
+    for (int i = 0; i < count; i++) {
+      byte[] utf8 = new byte[in.readInt()];
+      in.readFully(utf8);
+      blocks.add(new String(utf8, "UTF-8"));
+    }
+    return new ContentDelta(baseVersion, version, start, deleteCount, blocks);
+  }
+}
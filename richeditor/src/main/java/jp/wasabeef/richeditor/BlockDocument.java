@@ -0,0 +1,88 @@
+package jp.wasabeef.richeditor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Copyright (C) 2020 Wasabeef
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Java-side copy of the editor document kept as top-level blocks, so that a delta only
+ * touches the blocks it replaces and the full html is joined lazily.
+ */
+class BlockDocument {
+
+  private final List<String> blocks = new ArrayList<>();
+  private long version = ContentDelta.NO_VERSION;
+  private String html;
+
+  /**
+   * @return false if the delta does not apply to the current version and a reset is needed
+   */
+  boolean apply(ContentDelta delta) {
+    if (!delta.isReset()) {
+      if (delta.getBaseVersion() != version
+        || delta.getStart() + delta.getDeleteCount() > blocks.size()) {
+        return false;
+      }
+    }
+    delta.applyTo(blocks);
+    version = delta.getVersion();
+    html = null;
+    return true;
+  }
+
+  void clear() {
+    blocks.clear();
+    version = ContentDelta.NO_VERSION;
+    html = null;
+  }
+
+  long getVersion() {
+    return version;
+  }
+
+  int getBlockCount() {
+    return blocks.size();
+  }
+
+  List<String> getBlocks() {
+    return Collections.unmodifiableList(blocks);
+  }
+
+  /**
+   * @return a copy of {@code count} blocks starting at {@code start}
+   */
+  List<String> copyBlocks(int start, int count) {
+    return new ArrayList<>(blocks.subList(start, start + count));
+  }
+
+  String getHtml() {
+    if (html == null) {
+      int length = 0;
+      for (String block : blocks) {
+        length += block.length();
+      }
+      StringBuilder builder = new StringBuilder(length);
+      for (String block : blocks) {
+        builder.append(block);
+      }
+      html = builder.toString();
+    }
+    return html;
+  }
+}
@@ -0,0 +1,131 @@
+package jp.wasabeef.richeditor;
+
+import android.os.SystemClock;
+import android.view.View;
+
+/**
+ * Copyright (C) 2020 Wasabeef
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Runs a delivery on the UI thread according to a {@link CoalescingPolicy}.
+ * Must only be used from the UI thread.
+ */
+class Coalescer {
+
+  private final View view;
+  private final Runnable target;
+  private CoalescingPolicy policy = CoalescingPolicy.IMMEDIATE;
+  private boolean pending;
+  private boolean scheduled;
+  private long firstPendingAt = -1;
+  private long lastDeliveredAt = -1;
+  private int coalesced;
+
+  private final Runnable timeout = new Runnable() {
+    @Override
+    public void run() {
+      scheduled = false;
+      flush();
+    }
+  };
+
+  Coalescer(View view, Runnable target) {
+    this.view = view;
+    this.target = target;
+  }
+
+  void setPolicy(CoalescingPolicy policy) {
+    flush();
+    this.policy = policy;
+  }
+
+  CoalescingPolicy getPolicy() {
+    return policy;
+  }
+
+  void submit() {
+    if (policy.mode == CoalescingPolicy.Mode.IMMEDIATE) {
+      deliver();
+      return;
+    }
+
+    long now = SystemClock.uptimeMillis();
+    if (pending) {
+      coalesced++;
+    }
+    pending = true;
+    if (firstPendingAt < 0) {
+      firstPendingAt = now;
+    }
+
+    boolean idle = lastDeliveredAt < 0 || now - lastDeliveredAt >= policy.intervalMillis;
+    if (policy.leading && idle && !scheduled) {
+      deliver();
+      return;
+    }
+
+    if (policy.mode == CoalescingPolicy.Mode.DEBOUNCE) {
+      long delay = policy.intervalMillis;
+      if (policy.maxWaitMillis > 0) {
+        delay = Math.min(delay, firstPendingAt + policy.maxWaitMillis - now);
+      }
+      schedule(Math.max(0, delay));
+    } else if (!scheduled) {
+      schedule(idle ? policy.intervalMillis : lastDeliveredAt + policy.intervalMillis - now);
+    }
+  }
+
+  /**
+   * Delivers the pending event, if any, right now.
+   */
+  void flush() {
+    if (pending) {
+      deliver();
+    }
+  }
+
+  void onBlur() {
+    if (policy.flushOnBlur) {
+      flush();
+    }
+  }
+
+  /**
+   * @return the number of events folded into later deliveries since the last call
+   */
+  int takeCoalescedCount() {
+    int count = coalesced;
+    coalesced = 0;
+    return count;
+  }
+
+  private void schedule(long delay) {
+    view.removeCallbacks(timeout);
+    scheduled = true;
+    view.postDelayed(timeout, delay);
+  }
+
+  private void deliver() {
+    if (scheduled) {
+      view.removeCallbacks(timeout);
+      scheduled = false;
+    }
+    pending = false;
+    firstPendingAt = -1;
+    lastDeliveredAt = SystemClock.uptimeMillis();
+    target.run();
+  }
+}
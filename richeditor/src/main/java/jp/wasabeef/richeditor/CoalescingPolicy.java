@@ -0,0 +1,94 @@
+package jp.wasabeef.richeditor;
+
+/**
+ * Copyright (C) 2020 Wasabeef
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Bounds how often a listener is invoked for a burst of editor events. The last event of a burst
+ * is always delivered, so the listener ends up with the latest content.
+ */
+public final class CoalescingPolicy {
+
+  enum Mode {
+    IMMEDIATE,
+    DEBOUNCE,
+    THROTTLE
+  }
+
+  /**
+   * Invokes the listener for every event, like before coalescing existed.
+   */
+  public static final CoalescingPolicy IMMEDIATE =
+    new CoalescingPolicy(Mode.IMMEDIATE, 0, 0, false, true);
+
+  final Mode mode;
+  final long intervalMillis;
+  final long maxWaitMillis;
+  final boolean leading;
+  final boolean flushOnBlur;
+
+  private CoalescingPolicy(Mode mode, long intervalMillis, long maxWaitMillis, boolean leading,
+                           boolean flushOnBlur) {
+    this.mode = mode;
+    this.intervalMillis = intervalMillis;
+    this.maxWaitMillis = maxWaitMillis;
+    this.leading = leading;
+    this.flushOnBlur = flushOnBlur;
+  }
+
+  /**
+   * Delivers once no event has arrived for {@code delayMillis}.
+   */
+  public static CoalescingPolicy debounce(long delayMillis) {
+    return new CoalescingPolicy(Mode.DEBOUNCE, checkPositive(delayMillis), 0, false, true);
+  }
+
+  /**
+   * Delivers at most once every {@code intervalMillis}.
+   */
+  public static CoalescingPolicy throttle(long intervalMillis) {
+    return new CoalescingPolicy(Mode.THROTTLE, checkPositive(intervalMillis), 0, true, true);
+  }
+
+  /**
+   * Also delivers the first event of a burst right away.
+   */
+  public CoalescingPolicy withLeadingEdge(boolean leading) {
+    return new CoalescingPolicy(mode, intervalMillis, maxWaitMillis, leading, flushOnBlur);
+  }
+
+  /**
+   * Caps how long a debounced event can be held back while events keep arriving.
+   */
+  public CoalescingPolicy withMaxWait(long maxWaitMillis) {
+    return new CoalescingPolicy(mode, intervalMillis, checkPositive(maxWaitMillis), leading,
+      flushOnBlur);
+  }
+
+  /**
+   * Delivers a pending event immediately when the editor loses focus. Enabled by default.
+   */
+  public CoalescingPolicy withFlushOnBlur(boolean flushOnBlur) {
+    return new CoalescingPolicy(mode, intervalMillis, maxWaitMillis, leading, flushOnBlur);
+  }
+
+  private static long checkPositive(long millis) {
+    if (millis <= 0) {
+      throw new IllegalArgumentException("Duration must be positive: " + millis);
+    }
+    return millis;
+  }
+}
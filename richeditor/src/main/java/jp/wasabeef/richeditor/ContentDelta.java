@@ -0,0 +1,107 @@
+package jp.wasabeef.richeditor;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Copyright (C) 2020 Wasabeef
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A change to the editor document, expressed on its top-level blocks: {@link #getDeleteCount()}
+ * blocks starting at {@link #getStart()} are replaced by {@link #getBlocks()}.
+ * A reset delta replaces the whole document.
+ */
+public final class ContentDelta {
+
+  static final long NO_VERSION = -1;
+
+  private final long baseVersion;
+  private final long version;
+  private final int start;
+  private final int deleteCount;
+  private final List<String> blocks;
+
+  ContentDelta(long baseVersion, long version, int start, int deleteCount, List<String> blocks) {
+    this.baseVersion = baseVersion;
+    this.version = version;
+    this.start = start;
+    this.deleteCount = deleteCount;
+    this.blocks = Collections.unmodifiableList(blocks);
+  }
+
+  static ContentDelta parse(String json) throws JSONException {
+    return parse(new JSONObject(json));
+  }
+
+  static ContentDelta parse(JSONObject object) throws JSONException {
+    JSONArray array = object.getJSONArray("h");
+    List<String> blocks = new ArrayList<>(array.length());
+    for (int i = 0; i < array.length(); i++) {
+      blocks.add(array.getString(i));
+    }
+    return new ContentDelta(object.getLong("b"), object.getLong("v"), object.getInt("s"),
+      object.getInt("d"), blocks);
+  }
+
+  /**
+   * @return the document version this delta applies to, or -1 for a reset
+   */
+  public long getBaseVersion() {
+    return baseVersion;
+  }
+
+  /**
+   * @return the document version after applying this delta
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  public int getStart() {
+    return start;
+  }
+
+  public int getDeleteCount() {
+    return deleteCount;
+  }
+
+  public List<String> getBlocks() {
+    return blocks;
+  }
+
+  public boolean isReset() {
+    return baseVersion == NO_VERSION;
+  }
+
+  /**
+   * Applies this delta to a list of block html strings.
+   */
+  void applyTo(List<String> target) {
+    if (isReset()) {
+      target.clear();
+      target.addAll(blocks);
+      return;
+    }
+    List<String> range = target.subList(start, start + deleteCount);
+    range.clear();
+    range.addAll(blocks);
+  }
+}
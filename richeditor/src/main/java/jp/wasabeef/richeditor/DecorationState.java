@@ -0,0 +1,77 @@
+package jp.wasabeef.richeditor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Copyright (C) 2020 Wasabeef
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * The decoration state at the caret, sent by the editor as a bitmask of {@link RichEditor.Type}
+ * ordinals. Decoding reuses the same list.
+ */
+final class DecorationState {
+
+  private static final RichEditor.Type[] TYPES = RichEditor.Type.values();
+
+  private int mask = -1;
+  private final List<RichEditor.Type> types = new ArrayList<>(TYPES.length);
+  private final List<RichEditor.Type> typesView = Collections.unmodifiableList(types);
+
+  /**
+   * @return whether the state differs from the previous one
+   * @throws NumberFormatException if the text is not a mask
+   */
+  boolean update(String text) {
+    int mask = Integer.parseInt(text);
+    if (mask == this.mask) {
+      return false;
+    }
+    this.mask = mask;
+
+    types.clear();
+    for (RichEditor.Type type : TYPES) {
+      if ((mask & (1 << type.ordinal())) != 0) {
+        types.add(type);
+      }
+    }
+    return true;
+  }
+
+  void reset() {
+    mask = -1;
+    types.clear();
+  }
+
+  List<RichEditor.Type> getTypes() {
+    return typesView;
+  }
+
+  /**
+   * @return the type names joined by commas
+   */
+  String getText() {
+    StringBuilder text = new StringBuilder();
+    for (RichEditor.Type type : types) {
+      if (text.length() > 0) {
+        text.append(',');
+      }
+      text.append(type.name());
+    }
+    return text.toString();
+  }
+}
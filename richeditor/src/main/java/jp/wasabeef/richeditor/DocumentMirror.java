@@ -0,0 +1,286 @@
+package jp.wasabeef.richeditor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Copyright (C) 2020 Wasabeef
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A read-only model of the editor content as top-level blocks, kept up to date from the
+ * content notifications of {@link RichEditor}. Queries never touch the WebView; a block is only
+ * parsed again when it changed. Use it on the UI thread only.
+ * <p>
+ * Text is an approximation of what the editor renders: blocks are separated by line breaks,
+ * whitespace is collapsed and non-breaking spaces read as spaces. A word is a run of
+ * non-whitespace characters and character counts exclude line breaks.
+ */
+public final class DocumentMirror {
+
+  /**
+   * A top-level node of the document.
+   */
+  public static final class Block {
+
+    private final String html;
+    private final boolean block;
+    private String text;
+    private List<String> links;
+    private int characterCount;
+    private int wordCount;
+    private boolean startsInWord;
+    private boolean endsInWord;
+
+    Block(String html) {
+      this.html = html;
+      this.block = HtmlText.isBlock(html);
+    }
+
+    public String getHtml() {
+      return html;
+    }
+
+    public String getText() {
+      parse();
+      return text;
+    }
+
+    public int getCharacterCount() {
+      parse();
+      return characterCount;
+    }
+
+    public int getWordCount() {
+      parse();
+      return wordCount;
+    }
+
+    public List<String> getLinks() {
+      parse();
+      return links;
+    }
+
+    /**
+     * @return false for text and inline elements, which share a line with their neighbours
+     */
+    public boolean isBlock() {
+      return block;
+    }
+
+    private void parse() {
+      if (text != null) {
+        return;
+      }
+      StringBuilder builder = new StringBuilder();
+      List<String> found = new ArrayList<>(0);
+      HtmlText.extract(html, builder, found);
+      if (block) {
+        int start = 0;
+        int end = builder.length();
+        while (start < end && builder.charAt(start) == ' ') {
+          start++;
+        }
+        while (end > start && (builder.charAt(end - 1) == '\n' || builder.charAt(end - 1) == ' ')) {
+          end--;
+        }
+        text = builder.substring(start, end);
+      } else {
+        text = builder.toString();
+      }
+      links = found.isEmpty() ? Collections.<String>emptyList()
+        : Collections.unmodifiableList(found);
+
+      int length = text.length();
+      boolean inWord = false;
+      for (int i = 0; i < length; ) {
+        int codePoint = text.codePointAt(i);
+        if (codePoint != '\n') {
+          characterCount++;
+        }
+        boolean whitespace = Character.isWhitespace(codePoint);
+        if (!whitespace && !inWord) {
+          wordCount++;
+        }
+        inWord = !whitespace;
+        i += Character.charCount(codePoint);
+      }
+      startsInWord = length > 0 && !Character.isWhitespace(text.codePointAt(0));
+      endsInWord = inWord;
+    }
+  }
+
+  private final List<Block> blocks = new ArrayList<>();
+  private final List<Block> readOnlyBlocks = Collections.unmodifiableList(blocks);
+  // Full html not split into blocks yet, set when the editor sends whole documents.
+  private String pendingHtml;
+  private String text;
+  private List<String> links;
+  private int characterCount = -1;
+  private int wordCount;
+
+  DocumentMirror() {
+  }
+
+  public List<Block> getBlocks() {
+    split();
+    return readOnlyBlocks;
+  }
+
+  public int getBlockCount() {
+    split();
+    return blocks.size();
+  }
+
+  public String getText() {
+    if (text == null) {
+      split();
+      StringBuilder builder = new StringBuilder();
+      Block previous = null;
+      for (Block block : blocks) {
+        if (previous != null && (previous.isBlock() || block.isBlock())) {
+          builder.append('\n');
+        }
+        builder.append(block.getText());
+        previous = block;
+      }
+      text = builder.toString();
+    }
+    return text;
+  }
+
+  public int getCharacterCount() {
+    count();
+    return characterCount;
+  }
+
+  public int getWordCount() {
+    count();
+    return wordCount;
+  }
+
+  /**
+   * @return true if the document has no text other than whitespace, media does not count
+   */
+  public boolean isEmpty() {
+    return getWordCount() == 0;
+  }
+
+  /**
+   * @return the targets of all links, in document order
+   */
+  public List<String> getLinks() {
+    if (links == null) {
+      split();
+      List<String> found = new ArrayList<>();
+      for (Block block : blocks) {
+        found.addAll(block.getLinks());
+      }
+      links = Collections.unmodifiableList(found);
+    }
+    return links;
+  }
+
+  /**
+   * Applies a delta the editor sent, only the replaced blocks are parsed again.
+   */
+  void apply(ContentDelta delta) {
+    split();
+    int start = delta.isReset() ? 0 : delta.getStart();
+    int deleteCount = delta.isReset() ? blocks.size() : delta.getDeleteCount();
+    List<Block> range = blocks.subList(start, start + deleteCount);
+    List<String> html = delta.getBlocks();
+    // Keep parsed blocks that came back unchanged, a reset usually resends most of them.
+    int kept = 0;
+    while (kept < range.size() && kept < html.size()
+      && range.get(kept).getHtml().equals(html.get(kept))) {
+      kept++;
+    }
+    range.subList(kept, range.size()).clear();
+    for (int i = kept; i < html.size(); i++) {
+      range.add(new Block(html.get(i)));
+    }
+    invalidate();
+  }
+
+  /**
+   * Replaces the document, it is split into blocks when it is first queried.
+   */
+  void setHtml(String html) {
+    pendingHtml = html == null ? "" : html;
+    invalidate();
+  }
+
+  void clear() {
+    blocks.clear();
+    pendingHtml = null;
+    invalidate();
+  }
+
+  private void invalidate() {
+    text = null;
+    links = null;
+    characterCount = -1;
+  }
+
+  private void split() {
+    if (pendingHtml == null) {
+      return;
+    }
+    List<String> html = HtmlText.splitBlocks(pendingHtml);
+    pendingHtml = null;
+
+    // Only the blocks between the unchanged head and tail are parsed again.
+    int start = 0;
+    int oldEnd = blocks.size();
+    int newEnd = html.size();
+    while (start < oldEnd && start < newEnd && blocks.get(start).getHtml().equals(html.get(start))) {
+      start++;
+    }
+    while (oldEnd > start && newEnd > start
+      && blocks.get(oldEnd - 1).getHtml().equals(html.get(newEnd - 1))) {
+      oldEnd--;
+      newEnd--;
+    }
+    List<Block> range = blocks.subList(start, oldEnd);
+    range.clear();
+    for (int i = start; i < newEnd; i++) {
+      range.add(new Block(html.get(i)));
+    }
+  }
+
+  private void count() {
+    if (characterCount >= 0) {
+      return;
+    }
+    split();
+    int characters = 0;
+    int words = 0;
+    Block previous = null;
+    for (Block block : blocks) {
+      characters += block.getCharacterCount();
+      words += block.getWordCount();
+      // Inline neighbours share a line, a word can span both of them.
+      if (previous != null && !previous.isBlock() && !block.isBlock()
+        && previous.endsInWord && block.startsInWord) {
+        words--;
+      }
+      previous = block;
+    }
+    characterCount = characters;
+    wordCount = words;
+  }
+}
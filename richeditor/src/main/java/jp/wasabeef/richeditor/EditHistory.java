@@ -0,0 +1,394 @@
+package jp.wasabeef.richeditor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Copyright (C) 2020 Wasabeef
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Undo and redo stacks of block deltas. A step keeps only the blocks an edit replaced and the
+ * blocks it put in their place, never a snapshot of the document. Typing into one block is
+ * merged into word-sized steps, and the oldest steps are dropped once the stacks exceed the
+ * memory limit. Must only be used from the UI thread.
+ */
+class EditHistory {
+
+  static final int DEFAULT_MEMORY_LIMIT = 2 * 1024 * 1024;
+  static final long COALESCE_WINDOW_MILLIS = 1000;
+
+  private static final int MAGIC = 0x52454831; // "REH1"
+  // Rough cost of a String and a list slot beyond the characters themselves.
+  private static final int STRING_OVERHEAD = 48;
+  private static final int STEP_OVERHEAD = 64;
+
+  private static final int KIND_OTHER = 0;
+  private static final int KIND_INSERT = 1;
+  private static final int KIND_DELETE = 2;
+
+  static final class Step {
+
+    final int start;
+    final List<String> removed;
+    List<String> inserted;
+    private int kind;
+    private boolean open;
+    private long time;
+    private long size;
+
+    Step(int start, List<String> removed, List<String> inserted) {
+      this.start = start;
+      this.removed = removed;
+      this.inserted = inserted;
+      this.size = STEP_OVERHEAD + sizeOf(removed) + sizeOf(inserted);
+    }
+  }
+
+  private final Deque<Step> undo = new ArrayDeque<>();
+  private final Deque<Step> redo = new ArrayDeque<>();
+  private long memoryLimit = DEFAULT_MEMORY_LIMIT;
+  private long size;
+  // Sent to the editor, waiting for the editor to apply it.
+  private Step pending;
+  private boolean pendingUndo;
+  // A restored history is only valid for the document it was saved with.
+  private int expectedBlockCount = -1;
+  private long expectedChecksum;
+
+  void setMemoryLimit(long bytes) {
+    memoryLimit = bytes;
+    trim();
+  }
+
+  boolean canUndo() {
+    return !undo.isEmpty() && pending == null;
+  }
+
+  boolean canRedo() {
+    return !redo.isEmpty() && pending == null;
+  }
+
+  /**
+   * Records an edit made in the editor.
+   *
+   * @param before the blocks the delta replaces, as they were before it; for a reset the whole
+   *               document
+   */
+  void record(ContentDelta delta, List<String> before, long now) {
+    if (delta.isReset()) {
+      onReset(delta.getBlocks(), before);
+      return;
+    }
+    clearRedo();
+
+    Step last = undo.peekLast();
+    int kind = kindOf(delta, before);
+    if (last != null && last.open && kind != KIND_OTHER && last.kind == kind
+      && last.start == delta.getStart() && last.inserted.size() == 1
+      && delta.getDeleteCount() == 1 && delta.getBlocks().size() == 1
+      && now - last.time < COALESCE_WINDOW_MILLIS) {
+      size -= last.size;
+      last.inserted = new ArrayList<>(delta.getBlocks());
+      last.size = STEP_OVERHEAD + sizeOf(last.removed) + sizeOf(last.inserted);
+      size += last.size;
+      last.time = now;
+      last.open = kind != KIND_INSERT || !endsWord(before.get(0), delta.getBlocks().get(0));
+      trim();
+      return;
+    }
+
+    Step step = new Step(delta.getStart(), new ArrayList<>(before),
+      new ArrayList<>(delta.getBlocks()));
+    step.kind = kind;
+    step.time = now;
+    step.open = kind != KIND_OTHER
+      && (kind != KIND_INSERT || !endsWord(before.get(0), delta.getBlocks().get(0)));
+    undo.addLast(step);
+    size += step.size;
+    trim();
+  }
+
+  /**
+   * Ends the current step, the next edit starts a new one.
+   */
+  void close() {
+    Step last = undo.peekLast();
+    if (last != null) {
+      last.open = false;
+    }
+  }
+
+  /**
+   * @return the step to revert, or null if there is none
+   */
+  Step undo() {
+    if (!canUndo()) {
+      return null;
+    }
+    pending = undo.pollLast();
+    pending.open = false;
+    pendingUndo = true;
+    return pending;
+  }
+
+  /**
+   * @return the step to apply again, or null if there is none
+   */
+  Step redo() {
+    if (!canRedo()) {
+      return null;
+    }
+    pending = redo.pollLast();
+    pendingUndo = false;
+    return pending;
+  }
+
+  /**
+   * The editor applied the pending step.
+   */
+  void onApplied() {
+    if (pending == null) {
+      return;
+    }
+    (pendingUndo ? redo : undo).addLast(pending);
+    pending = null;
+  }
+
+  /**
+   * The editor changed before it got the pending step, so it was not applied.
+   */
+  void onRejected() {
+    if (pending == null) {
+      return;
+    }
+    (pendingUndo ? undo : redo).addLast(pending);
+    pending = null;
+  }
+
+  void clear() {
+    undo.clear();
+    redo.clear();
+    size = 0;
+    pending = null;
+    expectedBlockCount = -1;
+  }
+
+  long getSize() {
+    return size;
+  }
+
+  int getUndoCount() {
+    return undo.size();
+  }
+
+  int getRedoCount() {
+    return redo.size();
+  }
+
+  /**
+   * @param blocks the current document, a restored history only applies to the same document
+   */
+  byte[] save(List<String> blocks) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(MAGIC);
+    out.writeInt(blocks.size());
+    out.writeLong(checksum(blocks));
+    writeSteps(out, undo);
+    writeSteps(out, redo);
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Replaces this history with a saved one. It is kept if the next reset from the editor shows
+   * the document it was saved with, and dropped otherwise.
+   */
+  void restore(byte[] saved) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(saved));
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a saved edit history");
+    }
+    int blockCount = in.readInt();
+    long checksum = in.readLong();
+    List<Step> undoSteps = readSteps(in);
+    List<Step> redoSteps = readSteps(in);
+
+    clear();
+    expectedBlockCount = blockCount;
+    expectedChecksum = checksum;
+    for (Step step : undoSteps) {
+      undo.addLast(step);
+      size += step.size;
+    }
+    for (Step step : redoSteps) {
+      redo.addLast(step);
+      size += step.size;
+    }
+    trim();
+  }
+
+  /**
+   * A reset replaces the whole document. The steps no longer line up with the blocks, unless
+   * the document did not change, as on a resync, or this is a restored history meeting the
+   * document it was saved with.
+   */
+  private void onReset(List<String> blocks, List<String> before) {
+    boolean restored = expectedBlockCount == blocks.size() && expectedChecksum == checksum(blocks);
+    expectedBlockCount = -1;
+    if (!restored && !blocks.equals(before)) {
+      clear();
+    }
+  }
+
+  private void clearRedo() {
+    for (Step step : redo) {
+      size -= step.size;
+    }
+    redo.clear();
+  }
+
+  /**
+   * Drops the oldest steps, redo steps first, until the history fits the memory limit.
+   */
+  private void trim() {
+    while (size > memoryLimit && !redo.isEmpty()) {
+      size -= redo.pollFirst().size;
+    }
+    while (size > memoryLimit && !undo.isEmpty()) {
+      size -= undo.pollFirst().size;
+    }
+  }
+
+  private static int kindOf(ContentDelta delta, List<String> before) {
+    if (delta.getDeleteCount() != 1 || delta.getBlocks().size() != 1) {
+      return KIND_OTHER;
+    }
+    int difference = delta.getBlocks().get(0).length() - before.get(0).length();
+    return difference > 0 ? KIND_INSERT : difference < 0 ? KIND_DELETE : KIND_OTHER;
+  }
+
+  /**
+   * @return whether the html inserted into {@code before} to make {@code after} ends a word
+   */
+  static boolean endsWord(String before, String after) {
+    int prefix = 0;
+    int max = Math.min(before.length(), after.length());
+    while (prefix < max && before.charAt(prefix) == after.charAt(prefix)) {
+      prefix++;
+    }
+    int suffix = 0;
+    while (suffix < max - prefix
+      && before.charAt(before.length() - 1 - suffix) == after.charAt(after.length() - 1 - suffix)) {
+      suffix++;
+    }
+    String inserted = after.substring(prefix, after.length() - suffix);
+    if (inserted.contains("&nbsp;") || inserted.contains("<br")) {
+      return true;
+    }
+    for (int i = 0; i < inserted.length(); i++) {
+      char c = inserted.charAt(i);
+      if (Character.isWhitespace(c) || c == '\u00a0' || c == '.' || c == ',' || c == '!'
+        || c == '?' || c == ';' || c == ':') {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static long sizeOf(List<String> blocks) {
+    long size = 0;
+    for (String block : blocks) {
+      size += STRING_OVERHEAD + 2L * block.length();
+    }
+    return size;
+  }
+
+  static long checksum(List<String> blocks) {
+    CRC32 crc = new CRC32();
+    try {
+      for (String block : blocks) {
+        crc.update(block.getBytes("UTF-8"));
+        crc.update(0);
+      }
+    } catch (UnsupportedEncodingException e) {
+      // No handling
+    }
+    return crc.getValue();
+  }
+
+  private static void writeSteps(DataOutputStream out, Deque<Step> steps) throws IOException {
+    out.writeInt(steps.size());
+    for (Iterator<Step> it = steps.iterator(); it.hasNext(); ) {
+      Step step = it.next();
+      out.writeInt(step.start);
+      writeBlocks(out, step.removed);
+      writeBlocks(out, step.inserted);
+    }
+  }
+
+  private static void writeBlocks(DataOutputStream out, List<String> blocks) throws IOException {
+    out.writeInt(blocks.size());
+    for (String block : blocks) {
+      byte[] utf8 = block.getBytes("UTF-8");
+      out.writeInt(utf8.length);
+      out.write(utf8);
+    }
+  }
+
+  private static List<Step> readSteps(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    if (count < 0) {
+      throw new IOException("Corrupt edit history");
+    }
+    List<Step> steps = new ArrayList<>(Math.min(count, 1024));
+    for (int i = 0; i < count; i++) {
+      int start = in.readInt();
+      List<String> removed = readBlocks(in);
+      steps.add(new Step(start, removed, readBlocks(in)));
+    }
+    return steps;
+  }
+
+  private static List<String> readBlocks(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    if (count < 0) {
+      throw new IOException("Corrupt edit history");
+    }
+    List<String> blocks = new ArrayList<>(Math.min(count, 1024));
+    for (int i = 0; i < count; i++) {
+      int length = in.readInt();
+      if (length < 0) {
+        throw new IOException("Corrupt edit history");
+      }
+      byte[] utf8 = new byte[length];
+      in.readFully(utf8);
+      blocks.add(new String(utf8, "UTF-8"));
+    }
+    return blocks.isEmpty() ? Collections.<String>emptyList() : blocks;
+  }
+}
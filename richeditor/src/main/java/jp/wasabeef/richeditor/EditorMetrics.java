@@ -0,0 +1,60 @@
+package jp.wasabeef.richeditor;
+
+/**
+ * Copyright (C) 2020 Wasabeef
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Receives timings of an editor, see {@link RichEditor#setEditorMetrics(EditorMetrics)}.
+ * All methods are called on the UI thread. The same phases are also visible in system traces
+ * as sections named "RichEditor#...".
+ */
+public interface EditorMetrics {
+
+  /**
+   * @param millis time from creating the editor until its page finished loading
+   */
+  void onReady(long millis);
+
+  /**
+   * Called for every evaluation of queued commands.
+   *
+   * @param commandCount number of commands evaluated together
+   * @param queueWaitMillis how long the oldest of them waited in the queue
+   * @param evaluationMillis time until the WebView reported the evaluation done, or -1 below
+   * KitKat
+   */
+  void onCommandsEvaluated(int commandCount, long queueWaitMillis, long evaluationMillis);
+
+  /**
+   * Called for every message from the editor page, or for every batch of messages with the
+   * JavascriptInterface transport (type "batch").
+   *
+   * @param payloadSize size of the message as received, in chars
+   * @param decodeNanos time spent decoding it before handling
+   */
+  void onMessage(String type, int payloadSize, long decodeNanos);
+
+  /**
+   * Called once per second while messages arrive.
+   */
+  void onMessageRate(int messagesPerSecond);
+
+  /**
+   * Called when events were folded into later ones or dropped as unchanged, e.g. text changes
+   * held back by the coalescing policy ("textChange") or repeated decoration states ("state").
+   */
+  void onEventsCoalesced(String type, int count);
+}
@@ -0,0 +1,146 @@
+package jp.wasabeef.richeditor;
+
+import android.content.Context;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Copyright (C) 2020 Wasabeef
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Assembles editor.html with its stylesheets and script inlined, so the page loads with a single
+ * request. The result is built once per process.
+ */
+final class EditorPage {
+
+  private static final String PAGE = "editor.html";
+
+  private static final Pattern STYLESHEET =
+    Pattern.compile("<link[^>]*href=\"([^\"]+\\.css)\"[^>]*>");
+  private static final Pattern SCRIPT =
+    Pattern.compile("<script[^>]*src=\"([^\"]+\\.js)\"[^>]*></script>");
+  private static final Pattern COMMENT = Pattern.compile("/\\*.*?\\*/", Pattern.DOTALL);
+  // Normalize rules for elements and inputs that never appear in the editor.
+  private static final Pattern UNUSED_SELECTOR = Pattern.compile(
+    "^(button|optgroup|select|textarea|fieldset|legend|progress|details|summary|template|main)\\b"
+      + "|-moz-|::-webkit-file-upload-button"
+      + "|\\[type=\"(button|reset|submit|number|search|radio)\"\\]");
+
+  private static volatile String sPage;
+
+  private EditorPage() throws InstantiationException {
+    throw new InstantiationException("This class is not for instantiation");
+  }
+
+  static String get(Context context) throws IOException {
+    String page = sPage;
+    if (page == null) {
+      synchronized (EditorPage.class) {
+        page = sPage;
+        if (page == null) {
+          page = assemble(context);
+          sPage = page;
+        }
+      }
+    }
+    return page;
+  }
+
+  private static String assemble(Context context) throws IOException {
+    String html = readAsset(context, PAGE);
+
+    StringBuffer page = new StringBuffer(64 * 1024);
+    Matcher stylesheet = STYLESHEET.matcher(html);
+    while (stylesheet.find()) {
+      String css = stripCss(readAsset(context, stylesheet.group(1)));
+      stylesheet.appendReplacement(page, Matcher.quoteReplacement("<style>" + css + "</style>"));
+    }
+    stylesheet.appendTail(page);
+
+    html = page.toString();
+    page.setLength(0);
+    Matcher script = SCRIPT.matcher(html);
+    while (script.find()) {
+      String js = readAsset(context, script.group(1)).replace("</script", "<\\/script");
+      script.appendReplacement(page, Matcher.quoteReplacement("<script>" + js + "</script>"));
+    }
+    script.appendTail(page);
+    return page.toString();
+  }
+
+  /**
+   * Removes comments, blank lines and rules whose selectors only match unused elements.
+   */
+  static String stripCss(String css) {
+    css = COMMENT.matcher(css).replaceAll("");
+    StringBuilder out = new StringBuilder(css.length());
+    int start = 0;
+    while (start < css.length()) {
+      int open = css.indexOf('{', start);
+      int close = open < 0 ? -1 : css.indexOf('}', open);
+      if (close < 0) {
+        out.append(css.substring(start).trim());
+        break;
+      }
+
+      String prelude = css.substring(start, open).trim();
+      String body = css.substring(open, close + 1);
+      start = close + 1;
+      // Statements like @charset mean nothing inside a <style> element.
+      while (prelude.startsWith("@") && prelude.indexOf(';') >= 0) {
+        prelude = prelude.substring(prelude.indexOf(';') + 1).trim();
+      }
+      if (prelude.startsWith("@")) {
+        out.append(prelude).append(body).append('\n');
+        continue;
+      }
+
+      StringBuilder selectors = new StringBuilder();
+      for (String selector : prelude.split(",")) {
+        selector = selector.trim();
+        if (!selector.isEmpty() && !UNUSED_SELECTOR.matcher(selector).find()) {
+          if (selectors.length() > 0) {
+            selectors.append(',');
+          }
+          selectors.append(selector);
+        }
+      }
+      if (selectors.length() > 0) {
+        out.append(selectors).append(body.replaceAll("\\s*\n\\s*", "")).append('\n');
+      }
+    }
+    return out.toString();
+  }
+
+  private static String readAsset(Context context, String name) throws IOException {
+    InputStream in = context.getAssets().open(name);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toString("UTF-8");
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,276 @@
+package jp.wasabeef.richeditor;
+
+import android.graphics.Color;
+import android.view.Gravity;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Copyright (C) 2020 Wasabeef
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * The look of the editor, applied with {@link RichEditor#setEditorStyle(EditorStyle)} as CSS
+ * custom properties in a single call. Only the properties that differ from the style applied
+ * before are sent, so switching between themes is cheap. Immutable, one instance can be shared by
+ * any number of editors. Sizes are in CSS pixels, like {@link RichEditor#setEditorFontSize(int)}.
+ */
+public final class EditorStyle {
+
+  static final String TEXT_COLOR = "--re-text-color";
+  static final String CARET_COLOR = "--re-caret-color";
+  static final String BACKGROUND_COLOR = "--re-background-color";
+  static final String FONT_FAMILY = "--re-font-family";
+  static final String FONT_SIZE = "--re-font-size";
+  static final String LINE_HEIGHT = "--re-line-height";
+  static final String PADDING = "--re-padding";
+  static final String MIN_WIDTH = "--re-min-width";
+  static final String HEIGHT = "--re-height";
+  static final String TEXT_ALIGN = "--re-text-align";
+  static final String VERTICAL_ALIGN = "--re-vertical-align";
+  static final String PLACEHOLDER = "--re-placeholder";
+
+  private final Map<String, String> properties;
+  // The script applying every property, built on first use.
+  private volatile String script;
+
+  private EditorStyle(Map<String, String> properties) {
+    this.properties = Collections.unmodifiableMap(properties);
+  }
+
+  public Builder toBuilder() {
+    return new Builder(this);
+  }
+
+  /**
+   * @return the CSS custom properties of this style, by name
+   */
+  Map<String, String> getProperties() {
+    return properties;
+  }
+
+  /**
+   * @return the properties to change to get from {@code previous} to this style, null values
+   * for the ones to remove
+   */
+  Map<String, String> diff(EditorStyle previous) {
+    if (previous == null) {
+      return properties;
+    }
+    Map<String, String> changed = new LinkedHashMap<>();
+    for (Map.Entry<String, String> property : properties.entrySet()) {
+      if (!property.getValue().equals(previous.properties.get(property.getKey()))) {
+        changed.put(property.getKey(), property.getValue());
+      }
+    }
+    for (String name : previous.properties.keySet()) {
+      if (!properties.containsKey(name)) {
+        changed.put(name, null);
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * @return the script applying this style after {@code previous}, or null if nothing changes
+   */
+  String toScript(EditorStyle previous) {
+    if (previous == null) {
+      String full = script;
+      if (full == null) {
+        full = buildScript(properties);
+        script = full;
+      }
+      return full;
+    }
+    Map<String, String> changed = diff(previous);
+    return changed.isEmpty() ? null : buildScript(changed);
+  }
+
+  private static String buildScript(Map<String, String> properties) {
+    StringBuilder script = new StringBuilder("javascript:RE.setStyle({");
+    boolean first = true;
+    for (Map.Entry<String, String> property : properties.entrySet()) {
+      if (!first) {
+        script.append(", ");
+      }
+      first = false;
+      script.append('\'').append(property.getKey()).append("': ");
+      String value = property.getValue();
+      if (value == null) {
+        script.append("null");
+      } else {
+        script.append('\'');
+        Utils.appendJsString(script, value, 0, value.length());
+        script.append('\'');
+      }
+    }
+    return script.append("});").toString();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof EditorStyle && properties.equals(((EditorStyle) o).properties);
+  }
+
+  @Override
+  public int hashCode() {
+    return properties.hashCode();
+  }
+
+  static String cssColor(int color) {
+    int alpha = Color.alpha(color);
+    if (alpha == 0xFF) {
+      return Utils.toHexColorString(color);
+    }
+    return String.format(Locale.US, "rgba(%d, %d, %d, %.3f)", Color.red(color), Color.green(color),
+      Color.blue(color), alpha / 255f);
+  }
+
+  static String cssString(String text) {
+    StringBuilder css = new StringBuilder(text.length() + 2).append('"');
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '"' || c == '\\') {
+        css.append('\\').append(c);
+      } else if (c == '\n') {
+        css.append("\\A ");
+      } else {
+        css.append(c);
+      }
+    }
+    return css.append('"').toString();
+  }
+
+  /**
+   * Properties that are not set keep the editor's defaults.
+   */
+  public static final class Builder {
+
+    private final Map<String, String> properties;
+
+    public Builder() {
+      properties = new LinkedHashMap<>();
+    }
+
+    public Builder(EditorStyle style) {
+      properties = new LinkedHashMap<>(style.properties);
+    }
+
+    public Builder setTextColor(int color) {
+      return set(TEXT_COLOR, cssColor(color));
+    }
+
+    public Builder setCaretColor(int color) {
+      return set(CARET_COLOR, cssColor(color));
+    }
+
+    /**
+     * The color behind the editor inside the page, the view's own background is not changed.
+     */
+    public Builder setBackgroundColor(int color) {
+      return set(BACKGROUND_COLOR, cssColor(color));
+    }
+
+    /**
+     * @param fontFamily a CSS font-family list, like {@code "serif"}
+     */
+    public Builder setFontFamily(String fontFamily) {
+      return set(FONT_FAMILY, fontFamily);
+    }
+
+    public Builder setFontSize(int px) {
+      return set(FONT_SIZE, px + "px");
+    }
+
+    /**
+     * @param multiplier the line height relative to the font size
+     */
+    public Builder setLineHeight(float multiplier) {
+      return set(LINE_HEIGHT, String.format(Locale.US, "%.2f", multiplier));
+    }
+
+    public Builder setPadding(int left, int top, int right, int bottom) {
+      return set(PADDING, top + "px " + right + "px " + bottom + "px " + left + "px");
+    }
+
+    public Builder setMinWidth(int px) {
+      return set(MIN_WIDTH, px + "px");
+    }
+
+    public Builder setHeight(int px) {
+      return set(HEIGHT, px + "px");
+    }
+
+    /**
+     * Aligns the text like the gravity attribute of the view: left, right, top, bottom and the
+     * centers.
+     */
+    public Builder setGravity(int gravity) {
+      switch (gravity & Gravity.HORIZONTAL_GRAVITY_MASK) {
+        case Gravity.LEFT:
+          set(TEXT_ALIGN, "left");
+          break;
+        case Gravity.RIGHT:
+          set(TEXT_ALIGN, "right");
+          break;
+        case Gravity.CENTER_HORIZONTAL:
+          set(TEXT_ALIGN, "center");
+          break;
+        default:
+          properties.remove(TEXT_ALIGN);
+          break;
+      }
+      switch (gravity & Gravity.VERTICAL_GRAVITY_MASK) {
+        case Gravity.TOP:
+          set(VERTICAL_ALIGN, "top");
+          break;
+        case Gravity.BOTTOM:
+          set(VERTICAL_ALIGN, "bottom");
+          break;
+        case Gravity.CENTER_VERTICAL:
+          set(VERTICAL_ALIGN, "middle");
+          break;
+        default:
+          properties.remove(VERTICAL_ALIGN);
+          break;
+      }
+      return this;
+    }
+
+    /**
+     * Shown while the editor is empty and not focused.
+     */
+    public Builder setPlaceholder(String placeholder) {
+      return set(PLACEHOLDER, placeholder == null ? null : cssString(placeholder));
+    }
+
+    public EditorStyle build() {
+      return new EditorStyle(new LinkedHashMap<>(properties));
+    }
+
+    private Builder set(String name, String value) {
+      if (value == null) {
+        properties.remove(name);
+      } else {
+        properties.put(name, value);
+      }
+      return this;
+    }
+  }
+}
@@ -0,0 +1,480 @@
+package jp.wasabeef.richeditor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Copyright (C) 2020 Wasabeef
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A compact storage format for the html {@link RichEditor#getHtml()} returns.
+ * <p>
+ * The html is split into tokens. Tag and attribute names come from a dictionary, and a start tag
+ * or attribute value seen before is written as a reference to its first occurrence, so the
+ * {@code <font face=... size=... color=...>} wrappers execCommand repeats cost a few bytes each.
+ * Tags are normalized on the way: names in lower case, values in double quotes. Text is kept as
+ * written, entities included. The tokens can be deflated on top.
+ * <p>
+ * Decoding gives html ready for {@link RichEditor#setHtml(String)}:
+ * <pre>
+ * byte[] stored = HtmlCodec.encode(editor.getHtml());
+ * editor.setHtml(HtmlCodec.decode(stored));
+ * </pre>
+ */
+public final class HtmlCodec {
+
+  private static final int MAGIC = 0x52454331; // "REC1"
+  private static final int FLAG_DEFLATE = 1;
+
+  private static final int END = 0;
+  private static final int TEXT = 1;
+  private static final int START_TAG = 2;
+  private static final int START_TAG_REF = 3;
+  private static final int END_TAG = 4;
+  private static final int COMMENT = 5;
+  private static final int RAW = 6;
+
+  // A value reference of 0 is followed by a new value, 1 means an attribute without a value.
+  private static final int NEW_VALUE = 0;
+  private static final int NO_VALUE = 1;
+
+  // Seeds of the name tables. Changing them breaks stored documents, only ever append.
+  private static final List<String> TAG_NAMES = Arrays.asList(
+    "div", "br", "font", "span", "b", "i", "u", "strike", "a", "img", "p", "ul", "ol", "li",
+    "h1", "h2", "h3", "h4", "h5", "h6", "blockquote", "sub", "sup", "input", "video", "audio",
+    "iframe", "hr", "pre", "code", "em", "strong", "s", "table", "tbody", "tr", "td", "th");
+  private static final List<String> ATTRIBUTE_NAMES = Arrays.asList(
+    "style", "face", "size", "color", "href", "src", "alt", "width", "height", "type", "name",
+    "value", "checked", "class", "id", "dir", "align", "title", "target", "controls",
+    "frameborder", "allow", "allowfullscreen");
+
+  // Bounds the memory tables take on both sides for documents with few repeats.
+  private static final int MAX_TABLE_SIZE = 4096;
+
+  private HtmlCodec() throws InstantiationException {
+    throw new InstantiationException("This class is not for instantiation");
+  }
+
+  /**
+   * Encodes html with compression.
+   */
+  public static byte[] encode(String html) {
+    return encode(html, true);
+  }
+
+  public static byte[] encode(String html, boolean compress) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, html.length() / 4));
+    try {
+      encode(html, out, compress);
+    } catch (IOException e) {
+      // No handling, a ByteArrayOutputStream does not throw
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Writes the encoded html to {@code out} as it goes. {@code out} is flushed, not closed.
+   */
+  public static void encode(String html, OutputStream out, boolean compress) throws IOException {
+    writeHeader(out, compress ? FLAG_DEFLATE : 0);
+    if (!compress) {
+      BufferedOutputStream buffered = new BufferedOutputStream(out, 8192);
+      new Encoder(buffered).write(html);
+      buffered.flush();
+      return;
+    }
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    try {
+      DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, 8192);
+      // The encoder writes byte by byte, the deflater is only fed in blocks.
+      BufferedOutputStream buffered = new BufferedOutputStream(deflated, 8192);
+      new Encoder(buffered).write(html);
+      buffered.flush();
+      deflated.finish();
+      out.flush();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  public static String decode(byte[] encoded) throws IOException {
+    StringBuilder html = new StringBuilder(encoded.length * 4);
+    decode(new ByteArrayInputStream(encoded), html);
+    return html.toString();
+  }
+
+  /**
+   * Appends the decoded html to {@code out} as it is read. {@code in} is not closed.
+   *
+   * @throws IOException if {@code in} does not hold encoded html or it is cut short
+   */
+  public static void decode(InputStream in, Appendable out) throws IOException {
+    DataInputStream header = new DataInputStream(in);
+    if (header.readInt() != MAGIC) {
+      throw new IOException("Not encoded html");
+    }
+    int flags = header.readUnsignedByte();
+    if ((flags & FLAG_DEFLATE) == 0) {
+      new Decoder(new BufferedInputStream(in, 8192)).read(out);
+      return;
+    }
+    Inflater inflater = new Inflater();
+    try {
+      new Decoder(new BufferedInputStream(new InflaterInputStream(in, inflater, 8192), 8192))
+        .read(out);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  private static void writeHeader(OutputStream out, int flags) throws IOException {
+    out.write(MAGIC >>> 24);
+    out.write(MAGIC >>> 16);
+    out.write(MAGIC >>> 8);
+    out.write(MAGIC);
+    out.write(flags);
+  }
+
+  private static final class Encoder {
+
+    private final OutputStream out;
+    private final Map<String, Integer> tagNames = indexOf(TAG_NAMES);
+    private final Map<String, Integer> attributeNames = indexOf(ATTRIBUTE_NAMES);
+    private final Map<String, Integer> values = new HashMap<>();
+    private final Map<String, Integer> startTags = new HashMap<>();
+    private final StringBuilder tag = new StringBuilder();
+    private final List<String> attributes = new ArrayList<>();
+
+    Encoder(OutputStream out) {
+      this.out = out;
+    }
+
+    void write(String html) throws IOException {
+      int length = html.length();
+      int i = 0;
+      while (i < length) {
+        int next = html.indexOf('<', i);
+        if (next != i) {
+          int end = next < 0 ? length : next;
+          writeString(TEXT, html, i, end);
+          i = end;
+          continue;
+        }
+
+        if (html.startsWith("<!--", i)) {
+          int end = html.indexOf("-->", i + 4);
+          writeString(COMMENT, html, i + 4, end < 0 ? length : end);
+          i = end < 0 ? length : end + 3;
+          continue;
+        }
+
+        int end = HtmlText.tagEnd(html, i);
+        String name = HtmlText.tagName(html, i, end);
+        if (name.isEmpty() || html.charAt(end - 1) != '>') {
+          // A stray '<', a doctype or a tag cut short, kept as it is.
+          int textEnd = name.isEmpty() ? end : length;
+          writeString(RAW, html, i, textEnd);
+          i = textEnd;
+        } else if (html.charAt(i + 1) == '/') {
+          out.write(END_TAG);
+          writeName(tagNames, name);
+          i = end;
+        } else {
+          writeStartTag(html, i, end, name);
+          i = end;
+          if ("script".equals(name) || "style".equals(name)) {
+            int close = html.toLowerCase(Locale.US).indexOf("</" + name, i);
+            int textEnd = close < 0 ? length : close;
+            if (textEnd > i) {
+              writeString(TEXT, html, i, textEnd);
+            }
+            i = textEnd;
+          }
+        }
+      }
+      out.write(END);
+    }
+
+    private void writeStartTag(String html, int start, int end, String name) throws IOException {
+      attributes.clear();
+      int i = start + 1 + name.length();
+      int tagEnd = end - 1;
+      while (i < tagEnd) {
+        char c = html.charAt(i);
+        if (Character.isWhitespace(c) || c == '/') {
+          i++;
+          continue;
+        }
+        int nameStart = i;
+        while (i < tagEnd && !Character.isWhitespace(html.charAt(i)) && html.charAt(i) != '='
+          && html.charAt(i) != '/') {
+          i++;
+        }
+        String attribute = html.substring(nameStart, i).toLowerCase(Locale.US);
+        while (i < tagEnd && Character.isWhitespace(html.charAt(i))) {
+          i++;
+        }
+        String value = null;
+        if (i < tagEnd && html.charAt(i) == '=') {
+          i++;
+          while (i < tagEnd && Character.isWhitespace(html.charAt(i))) {
+            i++;
+          }
+          char quote = i < tagEnd ? html.charAt(i) : 0;
+          int valueStart;
+          int valueEnd;
+          if (quote == '"' || quote == '\'') {
+            valueStart = i + 1;
+            valueEnd = html.indexOf(quote, valueStart);
+            valueEnd = valueEnd < 0 || valueEnd > tagEnd ? tagEnd : valueEnd;
+            i = Math.min(valueEnd + 1, tagEnd);
+          } else {
+            valueStart = i;
+            while (i < tagEnd && !Character.isWhitespace(html.charAt(i))) {
+              i++;
+            }
+            valueEnd = i;
+          }
+          value = html.substring(valueStart, valueEnd).replace("\"", "&quot;");
+        }
+        attributes.add(attribute);
+        attributes.add(value);
+      }
+      boolean selfClosing = html.charAt(end - 2) == '/';
+
+      tag.setLength(0);
+      tag.append('<').append(name);
+      for (int a = 0; a < attributes.size(); a += 2) {
+        tag.append(' ').append(attributes.get(a));
+        if (attributes.get(a + 1) != null) {
+          tag.append("=\"").append(attributes.get(a + 1)).append('"');
+        }
+      }
+      tag.append(selfClosing ? "/>" : ">");
+      String key = tag.toString();
+      Integer index = startTags.get(key);
+      if (index != null) {
+        out.write(START_TAG_REF);
+        writeVarInt(index);
+        return;
+      }
+      if (startTags.size() < MAX_TABLE_SIZE) {
+        startTags.put(key, startTags.size());
+      }
+
+      out.write(START_TAG);
+      writeName(tagNames, name);
+      writeVarInt((attributes.size() / 2) << 1 | (selfClosing ? 1 : 0));
+      for (int a = 0; a < attributes.size(); a += 2) {
+        writeName(attributeNames, attributes.get(a));
+        writeValue(attributes.get(a + 1));
+      }
+    }
+
+    private void writeName(Map<String, Integer> names, String name) throws IOException {
+      Integer index = names.get(name);
+      if (index != null) {
+        writeVarInt(index + 1);
+        return;
+      }
+      if (names.size() < MAX_TABLE_SIZE) {
+        names.put(name, names.size());
+      }
+      writeVarInt(0);
+      writeUtf8(name, 0, name.length());
+    }
+
+    private void writeValue(String value) throws IOException {
+      if (value == null) {
+        writeVarInt(NO_VALUE);
+        return;
+      }
+      Integer index = values.get(value);
+      if (index != null) {
+        writeVarInt(index + 2);
+        return;
+      }
+      if (values.size() < MAX_TABLE_SIZE) {
+        values.put(value, values.size());
+      }
+      writeVarInt(NEW_VALUE);
+      writeUtf8(value, 0, value.length());
+    }
+
+    private void writeString(int type, String html, int start, int end) throws IOException {
+      out.write(type);
+      writeUtf8(html, start, end);
+    }
+
+    private void writeUtf8(String s, int start, int end) throws IOException {
+      byte[] utf8 = s.substring(start, end).getBytes("UTF-8");
+      writeVarInt(utf8.length);
+      out.write(utf8);
+    }
+
+    private void writeVarInt(int value) throws IOException {
+      while ((value & ~0x7f) != 0) {
+        out.write((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      out.write(value);
+    }
+
+    private static Map<String, Integer> indexOf(List<String> names) {
+      Map<String, Integer> index = new HashMap<>();
+      for (int i = 0; i < names.size(); i++) {
+        index.put(names.get(i), i);
+      }
+      return index;
+    }
+  }
+
+  private static final class Decoder {
+
+    private final DataInputStream in;
+    private final List<String> tagNames = new ArrayList<>(TAG_NAMES);
+    private final List<String> attributeNames = new ArrayList<>(ATTRIBUTE_NAMES);
+    private final List<String> values = new ArrayList<>();
+    private final List<String> startTags = new ArrayList<>();
+    private final StringBuilder tag = new StringBuilder();
+    private byte[] buffer = new byte[256];
+
+    Decoder(InputStream in) {
+      this.in = new DataInputStream(in);
+    }
+
+    void read(Appendable out) throws IOException {
+      try {
+        while (true) {
+          int type = in.readUnsignedByte();
+          switch (type) {
+            case END:
+              return;
+            case TEXT:
+            case RAW:
+              out.append(readUtf8());
+              break;
+            case COMMENT:
+              out.append("<!--").append(readUtf8()).append("-->");
+              break;
+            case END_TAG:
+              out.append("</").append(readName(tagNames)).append('>');
+              break;
+            case START_TAG_REF:
+              out.append(lookup(startTags, readVarInt()));
+              break;
+            case START_TAG:
+              out.append(readStartTag());
+              break;
+            default:
+              throw new IOException("Corrupt encoded html");
+          }
+        }
+      } catch (EOFException e) {
+        throw new IOException("Encoded html is cut short", e);
+      }
+    }
+
+    private String readStartTag() throws IOException {
+      tag.setLength(0);
+      tag.append('<').append(readName(tagNames));
+      int header = readVarInt();
+      for (int a = header >>> 1; a > 0; a--) {
+        tag.append(' ').append(readName(attributeNames));
+        int reference = readVarInt();
+        if (reference == NO_VALUE) {
+          continue;
+        }
+        String value;
+        if (reference == NEW_VALUE) {
+          value = readUtf8();
+          if (values.size() < MAX_TABLE_SIZE) {
+            values.add(value);
+          }
+        } else {
+          value = lookup(values, reference - 2);
+        }
+        tag.append("=\"").append(value).append('"');
+      }
+      tag.append((header & 1) != 0 ? "/>" : ">");
+      String startTag = tag.toString();
+      if (startTags.size() < MAX_TABLE_SIZE) {
+        startTags.add(startTag);
+      }
+      return startTag;
+    }
+
+    private String readName(List<String> names) throws IOException {
+      int reference = readVarInt();
+      if (reference != 0) {
+        return lookup(names, reference - 1);
+      }
+      String name = readUtf8();
+      if (names.size() < MAX_TABLE_SIZE) {
+        names.add(name);
+      }
+      return name;
+    }
+
+    private String readUtf8() throws IOException {
+      int length = readVarInt();
+      if (length > buffer.length) {
+        buffer = new byte[Math.max(length, buffer.length * 2)];
+      }
+      in.readFully(buffer, 0, length);
+      return new String(buffer, 0, length, "UTF-8");
+    }
+
+    private int readVarInt() throws IOException {
+      int value = 0;
+      for (int shift = 0; shift < 32; shift += 7) {
+        int b = in.readUnsignedByte();
+        value |= (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) {
+          if (value < 0) {
+            break;
+          }
+          return value;
+        }
+      }
+      throw new IOException("Corrupt encoded html");
+    }
+
+    private static String lookup(List<String> table, int index) throws IOException {
+      if (index < 0 || index >= table.size()) {
+        throw new IOException("Corrupt encoded html");
+      }
+      return table.get(index);
+    }
+  }
+}
@@ -0,0 +1,402 @@
+package jp.wasabeef.richeditor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Copyright (C) 2020 Wasabeef
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A tolerant single-pass scanner for the html the editor produces. It is not a full html
+ * parser, it only needs to find top-level nodes, text and links.
+ */
+final class HtmlText {
+
+  static final Set<String> BLOCK_TAGS = new HashSet<>(Arrays.asList(
+    "address", "article", "aside", "blockquote", "dd", "div", "dl", "dt", "figcaption", "figure",
+    "footer", "h1", "h2", "h3", "h4", "h5", "h6", "header", "hr", "li", "main", "nav", "ol", "p",
+    "pre", "section", "table", "tr", "ul"));
+
+  static final Set<String> VOID_TAGS = new HashSet<>(Arrays.asList(
+    "area", "base", "br", "col", "embed", "hr", "img", "input", "link", "meta", "param",
+    "source", "track", "wbr"));
+
+  private HtmlText() {
+  }
+
+  /**
+   * Splits html into its top-level nodes, the same units the editor sends deltas for.
+   */
+  static List<String> splitBlocks(String html) {
+    List<String> blocks = new ArrayList<>();
+    int length = html.length();
+    int blockStart = 0;
+    int depth = 0;
+    int i = 0;
+    while (i < length) {
+      if (html.charAt(i) != '<') {
+        int next = html.indexOf('<', i);
+        i = next < 0 ? length : next;
+        if (depth == 0) {
+          blocks.add(html.substring(blockStart, i));
+          blockStart = i;
+        }
+        continue;
+      }
+
+      int end;
+      if (html.startsWith("<!--", i)) {
+        end = html.indexOf("-->", i + 4);
+        end = end < 0 ? length : end + 3;
+      } else {
+        end = tagEnd(html, i);
+        String name = tagName(html, i, end);
+        boolean closing = i + 1 < length && html.charAt(i + 1) == '/';
+        if (name.isEmpty()) {
+          // A stray '<' or a doctype, neither opens an element.
+        } else if (closing) {
+          depth = Math.max(0, depth - 1);
+        } else if ("script".equals(name) || "style".equals(name)) {
+          end = skipRawText(html, end, name);
+        } else if (!VOID_TAGS.contains(name) && html.charAt(end - 2) != '/') {
+          depth++;
+        }
+      }
+      i = end;
+      if (depth == 0) {
+        blocks.add(html.substring(blockStart, i));
+        blockStart = i;
+      }
+    }
+    if (blockStart < length) {
+      blocks.add(html.substring(blockStart));
+    }
+    return blocks;
+  }
+
+  /**
+   * @return the ends of the chunks of at most {@code size} chars that cover {@code text}, a
+   * surrogate pair is never split
+   */
+  static List<Integer> chunkEnds(String text, int size) {
+    List<Integer> ends = new ArrayList<>();
+    int start = 0;
+    while (start < text.length()) {
+      int end = Math.min(start + size, text.length());
+      if (end < text.length() && Character.isHighSurrogate(text.charAt(end - 1))) {
+        // Keeps the pair in the next chunk, or in this one if it holds nothing else.
+        end = end - 1 > start ? end - 1 : end + 1;
+      }
+      ends.add(end);
+      start = end;
+    }
+    return ends;
+  }
+
+  /**
+   * @return whether a top-level node is laid out as its own line
+   */
+  static boolean isBlock(String html) {
+    if (!html.startsWith("<") || html.startsWith("<!--")) {
+      return false;
+    }
+    return BLOCK_TAGS.contains(tagName(html, 0, tagEnd(html, 0)));
+  }
+
+  /**
+   * Appends the text of an html fragment, roughly as innerText would render it, and collects
+   * the targets of its links.
+   */
+  static void extract(String html, StringBuilder text, List<String> links) {
+    int length = html.length();
+    int textStart = text.length();
+    boolean space = false;
+    int i = 0;
+    while (i < length) {
+      char c = html.charAt(i);
+      if (c == '<') {
+        if (html.startsWith("<!--", i)) {
+          int end = html.indexOf("-->", i + 4);
+          i = end < 0 ? length : end + 3;
+          continue;
+        }
+        int end = tagEnd(html, i);
+        String name = tagName(html, i, end);
+        boolean closing = i + 1 < length && html.charAt(i + 1) == '/';
+        if (name.isEmpty() && html.startsWith("<!", i)) {
+          i = end;
+          continue;
+        }
+        if (!name.isEmpty()) {
+          if (!closing && ("script".equals(name) || "style".equals(name))) {
+            i = skipRawText(html, end, name);
+            continue;
+          }
+          if ("br".equals(name)) {
+            trimSpace(text, textStart);
+            text.append('\n');
+            space = false;
+          } else if (BLOCK_TAGS.contains(name)) {
+            trimSpace(text, textStart);
+            if (text.length() > textStart && text.charAt(text.length() - 1) != '\n') {
+              text.append('\n');
+            }
+            space = false;
+          } else if (!closing && "a".equals(name) && links != null) {
+            String href = attribute(html, i, end, "href");
+            if (href != null) {
+              links.add(decodeEntities(href));
+            }
+          }
+          i = end;
+          continue;
+        }
+      }
+
+      if (c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f') {
+        space = true;
+        i++;
+        continue;
+      }
+      if (space && (text.length() == textStart || text.charAt(text.length() - 1) != '\n')) {
+        text.append(' ');
+      }
+      space = false;
+      if (c == '&') {
+        i = appendEntity(html, i, text);
+      } else {
+        text.append(c);
+        i++;
+      }
+    }
+    // Edge whitespace is kept, it separates words from inline neighbours.
+    if (space && (text.length() == textStart || text.charAt(text.length() - 1) != '\n')) {
+      text.append(' ');
+    }
+  }
+
+  private static void trimSpace(StringBuilder text, int start) {
+    if (text.length() > start && text.charAt(text.length() - 1) == ' ') {
+      text.setLength(text.length() - 1);
+    }
+  }
+
+  static String decodeEntities(String text) {
+    if (text.indexOf('&') < 0) {
+      return text;
+    }
+    StringBuilder out = new StringBuilder(text.length());
+    int i = 0;
+    while (i < text.length()) {
+      char c = text.charAt(i);
+      if (c == '&') {
+        i = appendEntity(text, i, out);
+      } else {
+        out.append(c);
+        i++;
+      }
+    }
+    return out.toString();
+  }
+
+  /**
+   * Appends the character of the entity at {@code start}, a non-breaking space reads as a
+   * plain space. An unknown entity is kept as written.
+   *
+   * @return the index after the entity
+   */
+  private static int appendEntity(String html, int start, StringBuilder out) {
+    if (start + 1 < html.length() && html.charAt(start + 1) == '#') {
+      return appendNumericEntity(html, start, out);
+    }
+    int semicolon = html.indexOf(';', start);
+    if (semicolon < 0 || semicolon - start > 10) {
+      out.append('&');
+      return start + 1;
+    }
+    int codePoint;
+    switch (html.substring(start + 1, semicolon)) {
+      case "amp":
+        codePoint = '&';
+        break;
+      case "lt":
+        codePoint = '<';
+        break;
+      case "gt":
+        codePoint = '>';
+        break;
+      case "quot":
+        codePoint = '"';
+        break;
+      case "apos":
+        codePoint = '\'';
+        break;
+      case "nbsp":
+        codePoint = ' ';
+        break;
+      default:
+        out.append('&');
+        return start + 1;
+    }
+    out.appendCodePoint(codePoint);
+    return semicolon + 1;
+  }
+
+  /**
+   * Decodes a numeric reference like browsers do: any number of digits, the semicolon optional,
+   * invalid code points replaced.
+   */
+  private static int appendNumericEntity(String html, int start, StringBuilder out) {
+    int i = start + 2;
+    int radix = 10;
+    if (i < html.length() && (html.charAt(i) == 'x' || html.charAt(i) == 'X')) {
+      radix = 16;
+      i++;
+    }
+    int digitsStart = i;
+    long codePoint = 0;
+    for (; i < html.length(); i++) {
+      char c = html.charAt(i);
+      int digit = c < 0x80 ? Character.digit(c, radix) : -1;
+      if (digit < 0) {
+        break;
+      }
+      if (codePoint <= Character.MAX_CODE_POINT) {
+        codePoint = codePoint * radix + digit;
+      }
+    }
+    if (i == digitsStart) {
+      out.append('&');
+      return start + 1;
+    }
+    if (i < html.length() && html.charAt(i) == ';') {
+      i++;
+    }
+    if (codePoint == 0 || codePoint > Character.MAX_CODE_POINT
+      || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+      codePoint = 0xFFFD;
+    }
+    out.appendCodePoint(codePoint == 0xA0 ? ' ' : (int) codePoint);
+    return i;
+  }
+
+  /**
+   * @return the index after the '&gt;' closing the tag at {@code start}, quotes respected
+   */
+  static int tagEnd(String html, int start) {
+    char quote = 0;
+    for (int i = start + 1; i < html.length(); i++) {
+      char c = html.charAt(i);
+      if (quote != 0) {
+        if (c == quote) {
+          quote = 0;
+        }
+      } else if (c == '"' || c == '\'') {
+        quote = c;
+      } else if (c == '>') {
+        return i + 1;
+      }
+    }
+    return html.length();
+  }
+
+  static String tagName(String html, int start, int end) {
+    int i = start + 1;
+    if (i < end && html.charAt(i) == '/') {
+      i++;
+    }
+    int nameStart = i;
+    while (i < end && Character.isLetterOrDigit(html.charAt(i))) {
+      i++;
+    }
+    if (nameStart == i || !Character.isLetter(html.charAt(nameStart))) {
+      return "";
+    }
+    return html.substring(nameStart, i).toLowerCase(Locale.US);
+  }
+
+  private static int skipRawText(String html, int start, String name) {
+    int close = html.toLowerCase(Locale.US).indexOf("</" + name, start);
+    return close < 0 ? html.length() : tagEnd(html, close);
+  }
+
+  private static String attribute(String html, int start, int end, String name) {
+    List<String> attributes = new ArrayList<>();
+    attributes(html, start, end, attributes);
+    for (int a = 0; a < attributes.size(); a += 2) {
+      if (attributes.get(a).equalsIgnoreCase(name)) {
+        return attributes.get(a + 1);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Adds the name and value of each attribute of the tag at {@code start} to {@code out}, values
+   * as written and empty for attributes without one.
+   */
+  static void attributes(String html, int start, int end, List<String> out) {
+    int i = start + 1;
+    while (i < end && Character.isLetterOrDigit(html.charAt(i))) {
+      i++;
+    }
+    while (i < end) {
+      while (i < end && (Character.isWhitespace(html.charAt(i)) || html.charAt(i) == '/')) {
+        i++;
+      }
+      int nameStart = i;
+      while (i < end && "= \t\n\r\f/>".indexOf(html.charAt(i)) < 0) {
+        i++;
+      }
+      if (nameStart == i) {
+        return;
+      }
+      String attribute = html.substring(nameStart, i);
+      while (i < end && Character.isWhitespace(html.charAt(i))) {
+        i++;
+      }
+      String value = "";
+      if (i < end && html.charAt(i) == '=') {
+        i++;
+        while (i < end && Character.isWhitespace(html.charAt(i))) {
+          i++;
+        }
+        char quote = i < end ? html.charAt(i) : 0;
+        int valueStart;
+        if (quote == '"' || quote == '\'') {
+          valueStart = ++i;
+          while (i < end && html.charAt(i) != quote) {
+            i++;
+          }
+          value = html.substring(valueStart, Math.min(i, end));
+          i++;
+        } else {
+          valueStart = i;
+          while (i < end && !Character.isWhitespace(html.charAt(i)) && html.charAt(i) != '>') {
+            i++;
+          }
+          value = html.substring(valueStart, i);
+        }
+      }
+      out.add(attribute);
+      out.add(value);
+    }
+  }
+}
@@ -0,0 +1,140 @@
+package jp.wasabeef.richeditor;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.util.LruCache;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Copyright (C) 2020 Wasabeef
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Encodes editor background images to data uris and keeps the results in a process-wide
+ * LRU cache, so the same background is only encoded once.
+ */
+final class ImageEncoder {
+
+  // Cache size in chars of data uri, about 8 MB.
+  private static final int CACHE_SIZE = 4 * 1024 * 1024;
+
+  private static final LruCache<String, String> CACHE = new LruCache<String, String>(CACHE_SIZE) {
+    @Override
+    protected int sizeOf(String key, String value) {
+      return value.length();
+    }
+  };
+
+  // Drawables are keyed by identity without keeping them alive.
+  private static final Map<Object, Integer> DRAWABLE_IDS = new WeakHashMap<>();
+  private static int sNextDrawableId = 0;
+
+  private ImageEncoder() throws InstantiationException {
+    throw new InstantiationException("This class is not for instantiation");
+  }
+
+  static String resourceKey(int resId, Bitmap.CompressFormat format, int quality, int maxWidth,
+                            int maxHeight) {
+    return "res:" + resId + ":" + spec(format, quality, maxWidth, maxHeight);
+  }
+
+  /**
+   * Drawables inflated from the same resource share their constant state, and so their key.
+   * The key also covers what is commonly changed in place (size, level, state, alpha, color, the
+   * pixels of a bitmap), but not every property of every drawable: {@link Drawable#mutate()} a
+   * drawable before changing it otherwise, which gives it its own constant state.
+   */
+  static String drawableKey(Drawable drawable, Bitmap.CompressFormat format, int quality,
+                            int maxWidth, int maxHeight) {
+    Object identity = drawable.getConstantState() != null ? drawable.getConstantState() : drawable;
+    Integer id;
+    synchronized (DRAWABLE_IDS) {
+      id = DRAWABLE_IDS.get(identity);
+      if (id == null) {
+        id = sNextDrawableId++;
+        DRAWABLE_IDS.put(identity, id);
+      }
+    }
+    return "drawable:" + id + ":" + variant(drawable) + ":"
+      + spec(format, quality, maxWidth, maxHeight);
+  }
+
+  static String get(String key) {
+    return CACHE.get(key);
+  }
+
+  /**
+   * Scales the bitmap down to the given bounds, compresses it and caches the data uri.
+   * Runs on a background thread.
+   *
+   * @param owned whether the bitmap may be recycled afterwards
+   */
+  static String encode(String key, Bitmap bitmap, boolean owned, Bitmap.CompressFormat format,
+                       int quality, int maxWidth, int maxHeight) {
+    Bitmap scaled = Utils.scaleDown(bitmap, maxWidth, maxHeight);
+    String uri = "data:" + mimeType(format) + ";base64," + Utils.toBase64(scaled, format, quality);
+    if (scaled != bitmap) {
+      scaled.recycle();
+    }
+    if (owned) {
+      bitmap.recycle();
+    }
+    CACHE.put(key, uri);
+    return uri;
+  }
+
+  private static String variant(Drawable drawable) {
+    StringBuilder variant = new StringBuilder();
+    variant.append(drawable.getIntrinsicWidth()).append('x').append(drawable.getIntrinsicHeight())
+      .append(':').append(drawable.getLevel())
+      .append(':').append(Arrays.hashCode(drawable.getState()))
+      .append(':').append(drawable.getChangingConfigurations());
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+      variant.append(':').append(drawable.getAlpha());
+    }
+    if (drawable instanceof ColorDrawable) {
+      variant.append(':').append(((ColorDrawable) drawable).getColor());
+    } else if (drawable instanceof BitmapDrawable) {
+      Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+      if (bitmap != null) {
+        variant.append(':').append(System.identityHashCode(bitmap))
+          .append('.').append(bitmap.getGenerationId());
+      }
+    }
+    return variant.toString();
+  }
+
+  private static String spec(Bitmap.CompressFormat format, int quality, int maxWidth,
+                             int maxHeight) {
+    return format.name() + ":" + quality + ":" + maxWidth + "x" + maxHeight;
+  }
+
+  private static String mimeType(Bitmap.CompressFormat format) {
+    switch (format) {
+      case JPEG:
+        return "image/jpeg";
+      case PNG:
+        return "image/png";
+      default:
+        return "image/webp";
+    }
+  }
+}
@@ -0,0 +1,201 @@
+package jp.wasabeef.richeditor;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Copyright (C) 2020 Wasabeef
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Keeps documents too large for a Bundle in files, referenced by a handle. The latest ones are
+ * also kept in memory, so a configuration change does not read them back from disk. A file is
+ * only deleted when the editor that saved it releases it, because back stack entries and other
+ * tasks may still hold the handle. Files of states that are never restored stay in the cache
+ * directory until the system clears it.
+ */
+final class InstanceStateStore {
+
+  interface Callback {
+
+    /**
+     * @param html the stored document, or null if it is gone
+     */
+    void onLoaded(String html);
+  }
+
+  /**
+   * Documents up to this length are saved in the Bundle itself, about 64 KB in a Parcel.
+   */
+  static final int INLINE_MAX_LENGTH = 32 * 1024;
+
+  private static final String DIRECTORY = "richeditor-state";
+  private static final String SUFFIX = ".html";
+  private static final int MAX_MEMORY_ENTRIES = 2;
+
+  private static final Map<String, String> sMemory =
+    new LinkedHashMap<String, String>(4, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+        return size() > MAX_MEMORY_ENTRIES;
+      }
+    };
+
+  private InstanceStateStore() throws InstantiationException {
+    throw new InstantiationException("This class is not for instantiation");
+  }
+
+  /**
+   * Stores a document, the file is written on a background thread.
+   *
+   * @param replaced the handle this document supersedes, released once it is written, or null
+   * @return the handle to load it with
+   */
+  static String put(Context context, final String html, final String replaced) {
+    final String handle = UUID.randomUUID().toString();
+    synchronized (sMemory) {
+      sMemory.put(handle, html);
+    }
+    final File directory = directory(context);
+    EditorExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          write(directory, handle, html);
+        } catch (IOException e) {
+          Log.e("RichEditor", "Could not save editor state", e);
+        }
+        if (replaced != null) {
+          delete(directory, replaced);
+        }
+      }
+    });
+    return handle;
+  }
+
+  /**
+   * Deletes a document that no saved state refers to any more.
+   */
+  static void release(Context context, final String handle) {
+    final File directory = directory(context);
+    EditorExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        delete(directory, handle);
+      }
+    });
+  }
+
+  /**
+   * Loads a stored document and delivers it on the main thread.
+   */
+  static void get(Context context, final String handle, final Callback callback) {
+    final Handler handler = new Handler(Looper.getMainLooper());
+    String html;
+    synchronized (sMemory) {
+      html = sMemory.get(handle);
+    }
+    if (html != null) {
+      final String cached = html;
+      handler.post(new Runnable() {
+        @Override
+        public void run() {
+          callback.onLoaded(cached);
+        }
+      });
+      return;
+    }
+
+    final File file = new File(directory(context), handle + SUFFIX);
+    EditorExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        String read = null;
+        try {
+          read = read(file);
+        } catch (IOException e) {
+          Log.e("RichEditor", "Could not restore editor state", e);
+        }
+        final String result = read;
+        handler.post(new Runnable() {
+          @Override
+          public void run() {
+            callback.onLoaded(result);
+          }
+        });
+      }
+    });
+  }
+
+  private static void write(File directory, String handle, String html) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create " + directory);
+    }
+    File temp = new File(directory, handle + ".tmp");
+    FileOutputStream out = new FileOutputStream(temp);
+    try {
+      out.write(html.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+    if (!temp.renameTo(new File(directory, handle + SUFFIX))) {
+      throw new IOException("Could not store " + handle);
+    }
+  }
+
+  private static String read(File file) throws IOException {
+    if (!file.exists()) {
+      return null;
+    }
+    InputStream in = new FileInputStream(file);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toString("UTF-8");
+    } finally {
+      in.close();
+    }
+  }
+
+  private static File directory(Context context) {
+    return new File(context.getApplicationContext().getCacheDir(), DIRECTORY);
+  }
+
+  private static void delete(File directory, String handle) {
+    synchronized (sMemory) {
+      sMemory.remove(handle);
+    }
+    File file = new File(directory, handle + SUFFIX);
+    if (file.exists() && !file.delete()) {
+      Log.w("RichEditor", "Could not delete " + file);
+    }
+  }
+}
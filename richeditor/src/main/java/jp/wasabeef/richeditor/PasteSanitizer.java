@@ -0,0 +1,345 @@
+package jp.wasabeef.richeditor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Copyright (C) 2020 Wasabeef
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Reduces pasted html to an allowlist of tags and attributes. Other tags are dropped and their
+ * content kept, block elements outside the allowlist become divs. Scripts, styles and embedded
+ * objects are dropped with their content, whitespace is collapsed and unclosed tags are closed.
+ * Links and images only keep urls with safe schemes.
+ * <p>
+ * Instances are immutable and used off the UI thread by {@link RichEditor}.
+ */
+public final class PasteSanitizer {
+
+  /**
+   * Text formatting, lists, headings, quotes, links and images, without styles or classes.
+   */
+  public static final PasteSanitizer DEFAULT = new PasteSanitizer(
+    new HashSet<>(Arrays.asList(
+      "b", "strong", "i", "em", "u", "s", "strike", "sub", "sup", "a", "br", "p", "div", "ul",
+      "ol", "li", "blockquote", "h1", "h2", "h3", "h4", "h5", "h6", "pre", "code", "img", "hr")),
+    attributes(
+      "a", "href",
+      "img", "src",
+      "img", "alt",
+      "img", "width",
+      "img", "height"));
+
+  private static final Set<String> DROPPED_WITH_CONTENT = new HashSet<>(Arrays.asList(
+    "head", "title", "script", "style", "template", "noscript", "iframe", "object", "svg", "math",
+    "xml", "select", "textarea"));
+  private static final Set<String> URL_ATTRIBUTES = new HashSet<>(Arrays.asList("href", "src"));
+  private static final Set<String> LINK_SCHEMES = new HashSet<>(Arrays.asList(
+    "http", "https", "mailto", "tel"));
+  private static final Set<String> SOURCE_SCHEMES = new HashSet<>(Arrays.asList(
+    "http", "https", "content", "file"));
+
+  private final Set<String> tags;
+  private final Map<String, Set<String>> attributes;
+
+  private PasteSanitizer(Set<String> tags, Map<String, Set<String>> attributes) {
+    this.tags = Collections.unmodifiableSet(tags);
+    this.attributes = Collections.unmodifiableMap(attributes);
+  }
+
+  /**
+   * Also keeps these tags, without attributes unless allowed with
+   * {@link #withAttributes(String, String...)}.
+   */
+  public PasteSanitizer withTags(String... tags) {
+    Set<String> allowed = new HashSet<>(this.tags);
+    for (String tag : tags) {
+      allowed.add(tag.toLowerCase(Locale.US));
+    }
+    return new PasteSanitizer(allowed, attributes);
+  }
+
+  /**
+   * Drops these tags, keeping their content.
+   */
+  public PasteSanitizer withoutTags(String... tags) {
+    Set<String> allowed = new HashSet<>(this.tags);
+    for (String tag : tags) {
+      allowed.remove(tag.toLowerCase(Locale.US));
+    }
+    return new PasteSanitizer(allowed, attributes);
+  }
+
+  /**
+   * Keeps these attributes on {@code tag}, which is also allowed. Urls of href and src are
+   * still checked.
+   */
+  public PasteSanitizer withAttributes(String tag, String... attributes) {
+    tag = tag.toLowerCase(Locale.US);
+    Set<String> allowedTags = new HashSet<>(tags);
+    allowedTags.add(tag);
+    Map<String, Set<String>> allowed = new HashMap<>(this.attributes);
+    Set<String> names = allowed.containsKey(tag)
+      ? new HashSet<>(allowed.get(tag)) : new HashSet<String>();
+    for (String attribute : attributes) {
+      names.add(attribute.toLowerCase(Locale.US));
+    }
+    allowed.put(tag, Collections.unmodifiableSet(names));
+    return new PasteSanitizer(allowedTags, allowed);
+  }
+
+  /**
+   * @return balanced html holding only allowed tags and attributes
+   */
+  public String sanitize(String html) {
+    StringBuilder out = new StringBuilder(Math.min(html.length(), 64 * 1024));
+    Deque<String> open = new ArrayDeque<>();
+    List<String> tagAttributes = new ArrayList<>();
+    String lowerCase = null;
+    // Whitespace between blocks is dropped, it would become top-level text.
+    boolean blockBoundary = true;
+    int preDepth = 0;
+    int length = html.length();
+    int i = 0;
+    while (i < length) {
+      if (html.charAt(i) != '<') {
+        int next = html.indexOf('<', i);
+        int end = next < 0 ? length : next;
+        if (preDepth > 0) {
+          out.append(html, i, end);
+          blockBoundary = false;
+        } else {
+          blockBoundary = appendCollapsed(out, html, i, end, blockBoundary);
+        }
+        i = end;
+        continue;
+      }
+
+      if (html.startsWith("<!--", i)) {
+        int end = html.indexOf("-->", i + 4);
+        i = end < 0 ? length : end + 3;
+        continue;
+      }
+      int end = HtmlText.tagEnd(html, i);
+      String name = HtmlText.tagName(html, i, end);
+      if (name.isEmpty()) {
+        if (i + 1 < length && (html.charAt(i + 1) == '!' || html.charAt(i + 1) == '?')) {
+          // A doctype or processing instruction.
+          i = end;
+        } else {
+          out.append("&lt;");
+          blockBoundary = false;
+          i++;
+        }
+        continue;
+      }
+      int start = i;
+      boolean closing = html.charAt(i + 1) == '/';
+      if (!closing && DROPPED_WITH_CONTENT.contains(name)) {
+        if (lowerCase == null) {
+          lowerCase = html.toLowerCase(Locale.US);
+        }
+        int close = lowerCase.indexOf("</" + name, end);
+        i = close < 0 ? length : HtmlText.tagEnd(html, close);
+        continue;
+      }
+      i = end;
+
+      String tag = name;
+      if (!tags.contains(tag)) {
+        if (closing && !blockBoundary && ("td".equals(tag) || "th".equals(tag))) {
+          // Keeps the cells of a row apart.
+          out.append(' ');
+          blockBoundary = true;
+        }
+        if (!HtmlText.BLOCK_TAGS.contains(tag) || !tags.contains("div")) {
+          continue;
+        }
+        tag = "div";
+      }
+      boolean block = HtmlText.BLOCK_TAGS.contains(tag) || "br".equals(tag);
+      if (closing) {
+        if (open.contains(tag)) {
+          String closed;
+          do {
+            closed = open.pop();
+            out.append("</").append(closed).append('>');
+            if ("pre".equals(closed)) {
+              preDepth--;
+            }
+          } while (!closed.equals(tag));
+          blockBoundary = block;
+        }
+        continue;
+      }
+
+      out.append('<').append(tag);
+      Set<String> allowed = attributes.get(tag);
+      if (allowed != null && tag.equals(name)) {
+        tagAttributes.clear();
+        HtmlText.attributes(html, start, end, tagAttributes);
+        appendAttributes(out, allowed, tagAttributes);
+      }
+      out.append('>');
+      if (!HtmlText.VOID_TAGS.contains(tag)) {
+        open.push(tag);
+        if ("pre".equals(tag)) {
+          preDepth++;
+        }
+      }
+      blockBoundary = block;
+    }
+    while (!open.isEmpty()) {
+      out.append("</").append(open.pop()).append('>');
+    }
+    return out.toString();
+  }
+
+  /**
+   * @return plain text as html, lines separated by line breaks and runs of spaces kept
+   */
+  public String sanitizeText(String text) {
+    StringBuilder out = new StringBuilder(text.length() + 16);
+    boolean space = true;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      switch (c) {
+        case '&':
+          out.append("&amp;");
+          break;
+        case '<':
+          out.append("&lt;");
+          break;
+        case '>':
+          out.append("&gt;");
+          break;
+        case '\r':
+          if (i + 1 < text.length() && text.charAt(i + 1) == '\n') {
+            continue;
+          }
+          out.append("<br>");
+          break;
+        case '\n':
+          out.append("<br>");
+          break;
+        case ' ':
+        case '\t':
+          out.append(space ? "&nbsp;" : " ");
+          break;
+        default:
+          out.append(c);
+          break;
+      }
+      space = c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+    return out.toString();
+  }
+
+  private static Map<String, Set<String>> attributes(String... tagAndAttribute) {
+    Map<String, Set<String>> attributes = new HashMap<>();
+    for (int i = 0; i < tagAndAttribute.length; i += 2) {
+      Set<String> names = attributes.get(tagAndAttribute[i]);
+      if (names == null) {
+        names = new HashSet<>();
+        attributes.put(tagAndAttribute[i], names);
+      }
+      names.add(tagAndAttribute[i + 1]);
+    }
+    return attributes;
+  }
+
+  private static boolean appendCollapsed(StringBuilder out, String html, int start, int end,
+                                         boolean blockBoundary) {
+    boolean space = false;
+    for (int i = start; i < end; i++) {
+      char c = html.charAt(i);
+      if (c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f') {
+        space = true;
+        continue;
+      }
+      if (space && !blockBoundary) {
+        out.append(' ');
+      }
+      space = false;
+      blockBoundary = false;
+      out.append(c);
+    }
+    if (space && !blockBoundary) {
+      out.append(' ');
+    }
+    return blockBoundary;
+  }
+
+  private static void appendAttributes(StringBuilder out, Set<String> allowed,
+                                       List<String> attributes) {
+    for (int a = 0; a < attributes.size(); a += 2) {
+      String name = attributes.get(a).toLowerCase(Locale.US);
+      String value = attributes.get(a + 1);
+      if (!allowed.contains(name)) {
+        continue;
+      }
+      if (URL_ATTRIBUTES.contains(name) && !isSafeUrl(value, "href".equals(name))) {
+        continue;
+      }
+      out.append(' ').append(name).append("=\"").append(value.replace("\"", "&quot;")).append('"');
+    }
+  }
+
+  /**
+   * @param link whether the url is followed as a link rather than loaded as a source
+   * @return whether the url is relative or has a safe scheme, data urls only for images
+   */
+  static boolean isSafeUrl(String value, boolean link) {
+    String url = HtmlText.decodeEntities(value);
+    if (url.contains("&#")) {
+      // Encoded twice, or a reference the decoder did not take.
+      return false;
+    }
+    StringBuilder compact = new StringBuilder(Math.min(url.length(), 32));
+    for (int i = 0; i < url.length() && compact.length() < 32; i++) {
+      char c = url.charAt(i);
+      // Browsers ignore whitespace and control characters in a scheme.
+      if (c > ' ') {
+        compact.append(Character.toLowerCase(c));
+      }
+    }
+    String prefix = compact.toString();
+    int colon = prefix.indexOf(':');
+    if (colon < 0) {
+      return true;
+    }
+    for (int i = 0; i < colon; i++) {
+      char c = prefix.charAt(i);
+      if (c == '/' || c == '?' || c == '#') {
+        return true;
+      }
+    }
+    String scheme = prefix.substring(0, colon);
+    if (link) {
+      return LINK_SCHEMES.contains(scheme);
+    }
+    return SOURCE_SCHEMES.contains(scheme) || prefix.startsWith("data:image/");
+  }
+}
@@ -0,0 +1,323 @@
+package jp.wasabeef.richeditor;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+import android.util.LruCache;
+import android.webkit.MimeTypeMap;
+import android.webkit.WebResourceResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Copyright (C) 2020 Wasabeef
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Process-wide memory and disk cache for resources served by a {@link ResourceProvider}.
+ * Responses stream from the provider to the WebView while being written to disk, small
+ * ones are also kept in memory. Used from WebView background threads.
+ */
+final class ResourceCache {
+
+  private static final String TAG = "RichEditor";
+  private static final String DIRECTORY = "richeditor-resources";
+  private static final int MEMORY_SIZE = 8 * 1024 * 1024;
+  private static final int MEMORY_ENTRY_LIMIT = 256 * 1024;
+  private static final long DISK_SIZE = 50L * 1024 * 1024;
+  private static final String DEFAULT_MIME_TYPE = "application/octet-stream";
+
+  private static ResourceCache sInstance;
+
+  private final LruCache<String, byte[]> memory = new LruCache<String, byte[]>(MEMORY_SIZE) {
+    @Override
+    protected int sizeOf(String key, byte[] value) {
+      return value.length;
+    }
+  };
+  private final File directory;
+  private final Object diskLock = new Object();
+  private long diskSize = -1;
+
+  private ResourceCache(File directory) {
+    this.directory = directory;
+  }
+
+  static synchronized ResourceCache getInstance(Context context) {
+    if (sInstance == null) {
+      sInstance = new ResourceCache(new File(context.getApplicationContext().getCacheDir(),
+        DIRECTORY));
+    }
+    return sInstance;
+  }
+
+  /**
+   * @return the response, or null if the provider does not serve the url or failed
+   */
+  WebResourceResponse load(ResourceProvider provider, String url) {
+    Uri uri = Uri.parse(url);
+    if (!provider.canProvide(uri)) {
+      return null;
+    }
+    String mimeType = mimeType(provider, uri, url);
+
+    byte[] bytes = memory.get(url);
+    if (bytes != null) {
+      return new WebResourceResponse(mimeType, null, new ByteArrayInputStream(bytes));
+    }
+
+    String name = fileName(url);
+    File file = new File(directory, name);
+    try {
+      if (file.isFile()) {
+        file.setLastModified(System.currentTimeMillis());
+        return new WebResourceResponse(mimeType, null, new FileInputStream(file));
+      }
+    } catch (FileNotFoundException e) {
+      // Evicted in the meantime, load it again.
+    }
+
+    try {
+      InputStream in = provider.open(uri);
+      if (in == null) {
+        return null;
+      }
+      return new WebResourceResponse(mimeType, null, new CachingInputStream(in, url, name));
+    } catch (IOException e) {
+      Log.e(TAG, "Could not open resource " + url, e);
+      return null;
+    }
+  }
+
+  private static String mimeType(ResourceProvider provider, Uri uri, String url) {
+    String mimeType = provider.getMimeType(uri);
+    if (mimeType == null) {
+      String extension = MimeTypeMap.getFileExtensionFromUrl(url);
+      if (extension != null) {
+        mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+      }
+    }
+    return mimeType != null ? mimeType : DEFAULT_MIME_TYPE;
+  }
+
+  private static String fileName(String url) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      byte[] hash = digest.digest(url.getBytes("UTF-8"));
+      StringBuilder builder = new StringBuilder(hash.length * 2);
+      for (byte b : hash) {
+        builder.append(Character.forDigit((b >> 4) & 0xF, 16))
+          .append(Character.forDigit(b & 0xF, 16));
+      }
+      return builder.toString();
+    } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private void commit(String url, String name, File temp, byte[] bytes) {
+    if (bytes != null) {
+      memory.put(url, bytes);
+    }
+    synchronized (diskLock) {
+      File file = new File(directory, name);
+      if (!temp.renameTo(file)) {
+        temp.delete();
+        return;
+      }
+      if (diskSize < 0) {
+        diskSize = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+          for (File cached : files) {
+            diskSize += cached.length();
+          }
+        }
+      } else {
+        diskSize += file.length();
+      }
+      if (diskSize > DISK_SIZE) {
+        trimDisk();
+      }
+    }
+  }
+
+  /**
+   * Deletes the least recently used files until the cache is at 90% of its size.
+   */
+  private void trimDisk() {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        long difference = a.lastModified() - b.lastModified();
+        return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+      }
+    });
+    for (File file : files) {
+      if (diskSize <= DISK_SIZE * 9 / 10) {
+        break;
+      }
+      long length = file.length();
+      if (file.delete()) {
+        diskSize -= length;
+      }
+    }
+  }
+
+  /**
+   * Copies everything the WebView reads into a temporary file, which becomes the cache entry
+   * once the stream has been read to the end.
+   */
+  private final class CachingInputStream extends FilterInputStream {
+
+    private final String url;
+    private final String name;
+    private File temp;
+    private OutputStream file;
+    private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private boolean finished;
+
+    CachingInputStream(InputStream in, String url, String name) {
+      super(in);
+      this.url = url;
+      this.name = name;
+      try {
+        directory.mkdirs();
+        temp = File.createTempFile(name, ".tmp", directory);
+        file = new FileOutputStream(temp);
+      } catch (IOException e) {
+        Log.w(TAG, "Resource cache unavailable", e);
+        abandon();
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b < 0) {
+        finish();
+      } else {
+        copy(new byte[]{(byte) b}, 0, 1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+      int read = super.read(buffer, offset, count);
+      if (read < 0) {
+        finish();
+      } else {
+        copy(buffer, offset, read);
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+      // Skipped bytes still have to reach the cache.
+      byte[] buffer = new byte[(int) Math.min(count, 8192)];
+      long skipped = 0;
+      while (skipped < count) {
+        int read = read(buffer, 0, (int) Math.min(buffer.length, count - skipped));
+        if (read < 0) {
+          break;
+        }
+        skipped += read;
+      }
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+      super.close();
+      if (!finished) {
+        abandon();
+      }
+    }
+
+    private void copy(byte[] buffer, int offset, int count) {
+      if (file == null) {
+        return;
+      }
+      try {
+        file.write(buffer, offset, count);
+      } catch (IOException e) {
+        Log.w(TAG, "Could not cache " + url, e);
+        abandon();
+        return;
+      }
+      if (bytes != null) {
+        if (bytes.size() + count > MEMORY_ENTRY_LIMIT) {
+          bytes = null;
+        } else {
+          bytes.write(buffer, offset, count);
+        }
+      }
+    }
+
+    private void finish() {
+      if (finished || file == null) {
+        return;
+      }
+      finished = true;
+      try {
+        file.close();
+      } catch (IOException e) {
+        abandon();
+        return;
+      }
+      file = null;
+      commit(url, name, temp, bytes != null ? bytes.toByteArray() : null);
+    }
+
+    private void abandon() {
+      if (file != null) {
+        try {
+          file.close();
+        } catch (IOException ignored) {
+        }
+        file = null;
+      }
+      if (temp != null) {
+        temp.delete();
+      }
+      bytes = null;
+    }
+  }
+}
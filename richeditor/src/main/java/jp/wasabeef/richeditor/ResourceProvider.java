@@ -0,0 +1,42 @@
+package jp.wasabeef.richeditor;
+
+import android.net.Uri;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Copyright (C) 2020 Wasabeef
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Serves images, media, fonts and stylesheets requested by the editor page, see
+ * {@link RichEditor#setResourceProvider(ResourceProvider)}. Methods are called on a WebView
+ * background thread. Responses are cached by url, so a url must always map to the same content.
+ */
+public interface ResourceProvider {
+
+  /**
+   * @return whether this provider serves the url, otherwise the WebView loads it as usual
+   */
+  boolean canProvide(Uri uri);
+
+  InputStream open(Uri uri) throws IOException;
+
+  /**
+   * @return the mime type, or null to guess it from the file extension
+   */
+  String getMimeType(Uri uri);
+}
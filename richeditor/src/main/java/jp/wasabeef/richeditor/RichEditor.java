@@ -5,23 +5,40 @@ import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.Gravity;
+import android.webkit.JavascriptInterface;
+import android.webkit.ValueCallback;
 import android.webkit.WebChromeClient;
 import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
 
+import androidx.webkit.JavaScriptReplyProxy;
+import androidx.webkit.WebMessageCompat;
+import androidx.webkit.WebViewCompat;
+import androidx.webkit.WebViewFeature;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Locale;
 
 /**
  * Copyright (C) 2020 Wasabeef
@@ -62,29 +79,206 @@ public class RichEditor extends WebView {
     JUSTIFYRIGHT
   }
 
+  /**
+   * How messages travel from the editor page back to Java.
+   */
+  public enum Transport {
+    /**
+     * Every message is a navigation to a percent-encoded re-*:// url. Works on all API levels.
+     */
+    URL_SCHEME,
+    /**
+     * Messages are batched per frame and handed to a JavascriptInterface as one JSON array,
+     * without url encoding. Requires API 17, falls back to {@link #URL_SCHEME} below that.
+     */
+    JAVASCRIPT_INTERFACE
+  }
+
+  /**
+   * How the editor page is loaded.
+   */
+  public enum LoadMode {
+    /**
+     * editor.html fetches its stylesheets and script as separate assets.
+     */
+    ASSETS,
+    /**
+     * One pre-assembled document with stylesheets and script inlined and unused normalize rules
+     * removed, built once per process.
+     */
+    INLINED
+  }
+
+  private static volatile LoadMode sDefaultLoadMode = LoadMode.ASSETS;
+
   public interface OnTextChangeListener {
 
     void onTextChange(String text);
   }
 
+  /**
+   * Called only when the decoration state at the caret actually changes. The list is reused
+   * and only valid during the call.
+   */
   public interface OnDecorationStateListener {
 
     void onStateChangeListener(String text, List<Type> types);
   }
 
+  /**
+   * Receives character and word counts computed in the editor, counted as by
+   * {@link DocumentMirror}. Called at most once per interval and only when a count changed.
+   */
+  public interface OnStatsChangeListener {
+
+    void onStatsChange(int characters, int words);
+  }
+
+  /**
+   * Receives the result of {@link #measureLayout(OnLayoutMeasuredListener)}.
+   */
+  public interface OnLayoutMeasuredListener {
+
+    /**
+     * @param millis        time of one layout of the whole document
+     * @param contentHeight height of the document in CSS pixels
+     * @param blockCount    number of top-level blocks
+     */
+    void onLayoutMeasured(double millis, int contentHeight, int blockCount);
+  }
+
+  /**
+   * Receives the matches of {@link #find(String)}, again whenever an edit changes them.
+   */
+  public interface OnFindListener {
+
+    /**
+     * @param current 1-based position of the current match, 0 if there is none
+     * @param count   number of matches in the document
+     */
+    void onFindResult(int current, int count);
+  }
+
+  /**
+   * Reports a paste handled by the {@link PasteSanitizer}.
+   */
+  public interface OnPasteListener {
+
+    /**
+     * @param pastedLength   length of the clipboard content, in chars
+     * @param insertedLength length of the html inserted after sanitizing, in chars
+     * @param sanitizeMillis time spent sanitizing on the background thread
+     * @param totalMillis    time from the paste until the last chunk was inserted
+     */
+    void onPaste(int pastedLength, int insertedLength, long sanitizeMillis, long totalMillis);
+  }
+
+  /**
+   * Receives the changed blocks of the document instead of the whole html on every edit.
+   * A delta with {@link ContentDelta#isReset()} replaces everything received before.
+   */
+  public interface OnContentDeltaListener {
+
+    void onContentDelta(ContentDelta delta);
+  }
+
+  /**
+   * Receives content read from the editor together with the document version it belongs to.
+   * The same version always means the same content.
+   */
+  public interface ContentCallback {
+
+    void onContent(String content, long version);
+  }
+
+  /**
+   * Reports the progress of {@link #setHtmlStreaming(String, OnHtmlLoadListener)}, in chars.
+   */
+  public interface OnHtmlLoadListener {
+
+    void onProgress(int loaded, int total);
+
+    void onComplete();
+  }
+
   public interface AfterInitialLoadListener {
 
     void onAfterInitialLoad(boolean isReady);
   }
 
   private static final String SETUP_HTML = "file:///android_asset/editor.html";
-  private static final String CALLBACK_SCHEME = "re-callback://";
-  private static final String STATE_SCHEME = "re-state://";
+  private static final String JAVASCRIPT_SCHEME = "javascript:";
+  private static final String MESSAGE_SCHEME_PREFIX = "re-";
+  private static final String MESSAGE_SCHEME_SEPARATOR = "://";
+  private static final String LOAD_SECTION = "RichEditor#load";
+  private static final String BRIDGE_NAME = "RichEditorBridge";
+  static final int STREAM_CHUNK_SIZE = 64 * 1024;
+  private static final int PASTE_CHUNK_SIZE = 16 * 1024;
   private boolean isReady = false;
+  // Created lazily, exec() can already be called from the View constructor.
+  private List<Command> mPendingCommands;
+  private boolean mFlushScheduled = false;
+  private final Runnable mFlushRunnable = new Runnable() {
+    @Override
+    public void run() {
+      mFlushScheduled = false;
+      flush();
+    }
+  };
+  private volatile Transport mTransport = Transport.URL_SCHEME;
+  private final EditorBridge mBridge = new EditorBridge();
+  private volatile boolean mBridgeOpen;
+  private volatile ResourceProvider mResourceProvider;
+  private ResourceCache mResourceCache;
   private String mContents;
+  private long mContentsVersion = ContentDelta.NO_VERSION;
+  private String mText;
+  private long mTextVersion = ContentDelta.NO_VERSION;
+  private int mStreamId = 0;
+  private volatile PasteSanitizer mPasteSanitizer;
+  private OnPasteListener mPasteListener;
+  private OnFindListener mFindListener;
+  private EditorStyle mEditorStyle;
+  private int mPasteId;
+  // Start node, offset, end node, offset, as last reported by the editor.
+  private int[] mSelection;
+  private String mSavedHtml;
+  private String mSavedHandle;
+  // Left unset until configured, setBackground() can be called from the View constructor.
+  private Bitmap.CompressFormat mBackgroundFormat;
+  private int mBackgroundQuality;
+  private int mBackgroundMaxWidth;
+  private int mBackgroundMaxHeight;
+  private int mBackgroundId;
+  private final BlockDocument mDocument = new BlockDocument();
+  private final DocumentMirror mMirror = new DocumentMirror();
+  private EditHistory mHistory;
+  // 0 keeps the default of EditHistory.
+  private long mHistoryMemoryLimit;
+  private AutosaveJournal mJournal;
+  private boolean mDeltaEnabled = false;
   private OnTextChangeListener mTextChangeListener;
+  private OnContentDeltaListener mContentDeltaListener;
   private OnDecorationStateListener mDecorationStateListener;
+  private OnStatsChangeListener mStatsChangeListener;
+  private final DecorationState mDecorationState = new DecorationState();
   private AfterInitialLoadListener mLoadListener;
+  private final Coalescer mTextChangeCoalescer = new Coalescer(this, new Runnable() {
+    @Override
+    public void run() {
+      if (mTextChangeListener != null) {
+        mTextChangeListener.onTextChange(getHtml());
+      }
+      int coalesced = mTextChangeCoalescer.takeCoalescedCount();
+      if (mMetrics != null && coalesced > 0) {
+        mMetrics.onEventsCoalesced("textChange", coalesced);
+      }
+    }
+  });
+  private EditorMetrics mMetrics;
+  private long mCreatedAt;
+  private long mMessageWindowStart;
+  private int mMessageCount;
 
   public RichEditor(Context context) {
     this(context, null);
@@ -97,103 +291,980 @@ public class RichEditor extends WebView {
   @SuppressLint("SetJavaScriptEnabled")
   public RichEditor(Context context, AttributeSet attrs, int defStyleAttr) {
     super(context, attrs, defStyleAttr);
+    mCreatedAt = SystemClock.uptimeMillis();
+    EditorTrace.beginAsync(LOAD_SECTION, System.identityHashCode(this));
 
     setVerticalScrollBarEnabled(false);
     setHorizontalScrollBarEnabled(false);
     getSettings().setJavaScriptEnabled(true);
     setWebChromeClient(new WebChromeClient());
     setWebViewClient(createWebviewClient());
-    loadUrl(SETUP_HTML);
+    loadEditorPage(context);
 
     applyAttributes(context, attrs);
+    updateSelectionTracking();
+  }
+
+  /**
+   * Sets the {@link LoadMode} of editors created from now on.
+   */
+  public static void setDefaultLoadMode(LoadMode mode) {
+    sDefaultLoadMode = mode;
+  }
+
+  /**
+   * Builds the inlined editor document on a background thread, so that the first editor created
+   * with {@link LoadMode#INLINED} does not have to.
+   */
+  public static void prepareInlinedPage(Context context) {
+    final Context appContext = context.getApplicationContext();
+    EditorExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          EditorPage.get(appContext);
+        } catch (IOException e) {
+          Log.e("RichEditor", "Could not assemble the editor page", e);
+        }
+      }
+    });
+  }
+
+  private void loadEditorPage(Context context) {
+    if (sDefaultLoadMode == LoadMode.INLINED) {
+      try {
+        // Use the asset url for both base and history url, relative urls and the ready check
+        // behave as with loadUrl().
+        loadDataWithBaseURL(SETUP_HTML, EditorPage.get(context), "text/html", "UTF-8",
+          SETUP_HTML);
+        return;
+      } catch (IOException e) {
+        Log.e("RichEditor", "Could not assemble the editor page", e);
+      }
+    }
+    loadUrl(SETUP_HTML);
   }
 
   protected EditorWebViewClient createWebviewClient() {
     return new EditorWebViewClient();
   }
 
+  /**
+   * @return whether the editor page has loaded and commands are evaluated
+   */
+  public boolean isReady() {
+    return isReady;
+  }
+
+  /**
+   * How the editor page sends messages to Java, {@link Transport#URL_SCHEME} by default. The
+   * page switches once the commands queued before are evaluated; messages it sent until then
+   * are still delivered.
+   * <p>
+   * The bridge is only registered while {@link Transport#JAVASCRIPT_INTERFACE} is selected and
+   * reaches the page when it loads, so set it right after creating the editor; until the page
+   * loads again it keeps sending urls. Where the WebView supports it the bridge is a web message
+   * listener that only accepts the editor page itself, not frames embedded in the document.
+   */
+  public void setTransport(Transport transport) {
+    if (transport == Transport.JAVASCRIPT_INTERFACE
+      && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR1) {
+      Log.w("RichEditor", "JavascriptInterface transport requires API 17, using url scheme");
+      transport = Transport.URL_SCHEME;
+    }
+    mTransport = transport;
+    if (transport == Transport.JAVASCRIPT_INTERFACE) {
+      openBridge();
+      exec("javascript:RE.setTransport('bridge');");
+    } else if (mBridgeOpen) {
+      // The page ends its last batch through the bridge with a "transport" message, which
+      // closes the bridge. A page that never had the bridge answers false instead.
+      evaluate("RE.setTransport('url')", new ValueCallback<String>() {
+        @Override
+        public void onReceiveValue(String value) {
+          if ("false".equals(value) && mTransport != Transport.JAVASCRIPT_INTERFACE) {
+            closeBridge();
+          }
+        }
+      });
+    }
+    if (mPasteSanitizer != null) {
+      updatePasteInterception();
+    }
+    updateSelectionTracking();
+  }
+
+  public Transport getTransport() {
+    return mTransport;
+  }
+
+  @SuppressLint({"AddJavascriptInterface", "JavascriptInterface"})
+  private void openBridge() {
+    if (mBridgeOpen) {
+      return;
+    }
+    mBridgeOpen = true;
+    if (WebViewFeature.isFeatureSupported(WebViewFeature.WEB_MESSAGE_LISTENER)) {
+      WebViewCompat.addWebMessageListener(this, BRIDGE_NAME, Collections.singleton("*"), mBridge);
+    } else {
+      addJavascriptInterface(mBridge, BRIDGE_NAME);
+    }
+  }
+
+  private void closeBridge() {
+    if (!mBridgeOpen) {
+      return;
+    }
+    // An injected bridge stays in the page until it reloads, the closed bridge ignores it.
+    mBridgeOpen = false;
+    if (WebViewFeature.isFeatureSupported(WebViewFeature.WEB_MESSAGE_LISTENER)) {
+      WebViewCompat.removeWebMessageListener(this, BRIDGE_NAME);
+    } else {
+      removeJavascriptInterface(BRIDGE_NAME);
+    }
+  }
+
+  /**
+   * Serves matching requests of the editor page (images, media, fonts, stylesheets) from the
+   * provider through a memory and disk cache shared by all editors. Pass null to let the
+   * WebView load everything itself.
+   */
+  public void setResourceProvider(ResourceProvider provider) {
+    if (provider != null && mResourceCache == null) {
+      mResourceCache = ResourceCache.getInstance(getContext());
+    }
+    mResourceProvider = provider;
+  }
+
+  /**
+   * Reports page load, command and message timings to {@code metrics}, or stops reporting when
+   * null.
+   */
+  public void setEditorMetrics(EditorMetrics metrics) {
+    mMetrics = metrics;
+  }
+
   public void setOnTextChangeListener(OnTextChangeListener listener) {
     mTextChangeListener = listener;
   }
 
+  /**
+   * Limits how often the {@link OnTextChangeListener} is invoked while the user types.
+   * Defaults to {@link CoalescingPolicy#IMMEDIATE}.
+   */
+  public void setTextChangeCoalescing(CoalescingPolicy policy) {
+    mTextChangeCoalescer.setPolicy(policy == null ? CoalescingPolicy.IMMEDIATE : policy);
+  }
+
+  /**
+   * Invokes the {@link OnTextChangeListener} now if a coalesced change is still pending.
+   */
+  public void flushTextChange() {
+    mTextChangeCoalescer.flush();
+  }
+
   public void setOnDecorationChangeListener(OnDecorationStateListener listener) {
     mDecorationStateListener = listener;
   }
 
+  public void setOnStatsChangeListener(OnStatsChangeListener listener) {
+    setOnStatsChangeListener(listener, 250);
+  }
+
+  /**
+   * Counts are kept per block in the editor and only the blocks an edit touched are counted
+   * again, so this stays cheap for long documents.
+   *
+   * @param minIntervalMs the minimum time between two calls of the listener
+   */
+  public void setOnStatsChangeListener(OnStatsChangeListener listener, long minIntervalMs) {
+    mStatsChangeListener = listener;
+    exec("javascript:RE.setStatsEnabled(" + (listener != null) + ", " + minIntervalMs + ");");
+  }
+
+  /**
+   * Intercepts paste into the editor: the clipboard content is sanitized with
+   * {@code sanitizer} on a background thread and inserted in bounded chunks, without blocking
+   * the UI thread. Content callbacks and deltas are held back until the paste is complete, it
+   * then arrives as one change and one undo step of the editor-managed history. Pass null to
+   * let the WebView paste by itself, which is the default.
+   * <p>
+   * Paste is only intercepted from API 19 with {@link Transport#JAVASCRIPT_INTERFACE}, which
+   * carry the chunks in order and any size of clipboard content; otherwise the WebView pastes
+   * by itself.
+   */
+  public void setPasteSanitizer(PasteSanitizer sanitizer) {
+    mPasteSanitizer = sanitizer;
+    updatePasteInterception();
+  }
+
+  public void setOnPasteListener(OnPasteListener listener) {
+    mPasteListener = listener;
+  }
+
+  /**
+   * Switches the editor to delta mode while a listener is set: only the changed blocks are sent
+   * from the editor on each edit and {@link #getHtml()} is rebuilt from them on demand.
+   */
+  public void setOnContentDeltaListener(OnContentDeltaListener listener) {
+    mContentDeltaListener = listener;
+    updateDeltaEnabled();
+  }
+
+  /**
+   * Saves every change to the journal as it is made. Attaching a journal switches the editor to
+   * delta mode; the journal starts with a snapshot of the current content.
+   */
+  public void setAutosaveJournal(AutosaveJournal journal) {
+    mJournal = journal;
+    if (journal != null && mDeltaEnabled && mDocument.getVersion() != ContentDelta.NO_VERSION) {
+      journal.append(new ContentDelta(ContentDelta.NO_VERSION, mDocument.getVersion(), 0, 0,
+        new ArrayList<>(mDocument.getBlocks())));
+    }
+    updateDeltaEnabled();
+  }
+
+  /**
+   * Replaces the browser's undo history with one kept by the editor: it survives
+   * {@link #setHtml(String)}, is bounded by {@link #setHistoryMemoryLimit(long)} and can be
+   * saved with {@link #saveHistory()}. Typing is undone a word at a time. Enabling it switches
+   * the editor to delta mode.
+   */
+  public void setHistoryEnabled(boolean enabled) {
+    if (enabled == (mHistory != null)) {
+      return;
+    }
+    mHistory = null;
+    if (enabled) {
+      mHistory = new EditHistory();
+      if (mHistoryMemoryLimit > 0) {
+        mHistory.setMemoryLimit(mHistoryMemoryLimit);
+      }
+    }
+    updateDeltaEnabled();
+    exec("javascript:RE.setHistoryEnabled(" + enabled + ");");
+  }
+
+  /**
+   * Sets the approximate memory the undo and redo steps may take, the oldest steps are dropped
+   * beyond it. Defaults to 2 MB. Can be set before the history is enabled.
+   */
+  public void setHistoryMemoryLimit(long bytes) {
+    mHistoryMemoryLimit = bytes;
+    if (mHistory != null) {
+      mHistory.setMemoryLimit(bytes);
+    }
+  }
+
+  public boolean canUndo() {
+    return mHistory != null && mHistory.canUndo();
+  }
+
+  public boolean canRedo() {
+    return mHistory != null && mHistory.canRedo();
+  }
+
+  /**
+   * @return the undo and redo steps for {@link #restoreHistory(byte[])}, or null if the history
+   * is not enabled
+   */
+  public byte[] saveHistory() {
+    if (mHistory == null) {
+      return null;
+    }
+    try {
+      return mHistory.save(mDocument.getBlocks());
+    } catch (IOException e) {
+      Log.e("RichEditor", "Could not save edit history", e);
+      return null;
+    }
+  }
+
+  /**
+   * Restores a history saved with {@link #saveHistory()}. Call it after setting the content it
+   * was saved with; if the editor then holds a different document, the history is dropped.
+   *
+   * @return false if the saved history could not be read
+   */
+  public boolean restoreHistory(byte[] saved) {
+    boolean deltaEnabled = mDeltaEnabled;
+    setHistoryEnabled(true);
+    try {
+      mHistory.restore(saved);
+    } catch (IOException e) {
+      Log.e("RichEditor", "Could not restore edit history", e);
+      mHistory.clear();
+      return false;
+    }
+    // The reset arrives after the content set before this call and checks it. Enabling delta
+    // mode just now already asked for one.
+    if (deltaEnabled) {
+      exec("javascript:RE.resetDelta();");
+    }
+    return true;
+  }
+
   public void setOnInitialLoadListener(AfterInitialLoadListener listener) {
     mLoadListener = listener;
   }
 
+  private void updatePasteInterception() {
+    boolean enabled = mPasteSanitizer != null && mTransport == Transport.JAVASCRIPT_INTERFACE
+      && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    exec("javascript:RE.setPasteInterception(" + enabled + ");");
+  }
+
+  private void updateDeltaEnabled() {
+    setDeltaEnabled(mContentDeltaListener != null || mHistory != null || mJournal != null);
+  }
+
+  private void setDeltaEnabled(boolean enabled) {
+    if (mDeltaEnabled == enabled) {
+      return;
+    }
+    mDeltaEnabled = enabled;
+    if (!enabled) {
+      mContents = getHtml();
+      mDocument.clear();
+    }
+    exec("javascript:RE.setDeltaEnabled(" + enabled + ");");
+  }
+
+  /**
+   * Handles re-&lt;type&gt;://&lt;percent-encoded payload&gt; messages from the editor page.
+   */
+  private boolean handleUrl(String url) {
+    int separator = url.indexOf(MESSAGE_SCHEME_SEPARATOR);
+    if (TextUtils.indexOf(url, MESSAGE_SCHEME_PREFIX) != 0 || separator < 0) {
+      return false;
+    }
+
+    EditorTrace.begin("RichEditor#message");
+    try {
+      long start = System.nanoTime();
+      String type = url.substring(MESSAGE_SCHEME_PREFIX.length(), separator);
+      Object data = Uri.decode(url.substring(separator + MESSAGE_SCHEME_SEPARATOR.length()));
+      if ("delta".equals(type) || "paste".equals(type)) {
+        data = new JSONObject((String) data);
+      }
+      onMessageDecoded(type, url.length(), System.nanoTime() - start, 1);
+      dispatch(type, data);
+    } catch (JSONException e) {
+      malformedDelta(e);
+    } finally {
+      EditorTrace.end();
+    }
+    return true;
+  }
+
+  private void onMessageDecoded(String type, int size, long decodeNanos, int count) {
+    if (mMetrics == null) {
+      return;
+    }
+    mMetrics.onMessage(type, size, decodeNanos);
+
+    long now = SystemClock.uptimeMillis();
+    if (now - mMessageWindowStart >= 1000) {
+      if (mMessageCount > 0) {
+        mMetrics.onMessageRate((int) (mMessageCount * 1000 / (now - mMessageWindowStart)));
+      }
+      mMessageWindowStart = now;
+      mMessageCount = 0;
+    }
+    mMessageCount += count;
+  }
+
+  private void dispatch(String type, Object data) throws JSONException {
+    switch (type) {
+      case "callback":
+        callback((String) data);
+        break;
+      case "state":
+        stateCheck((String) data);
+        break;
+      case "delta":
+        delta(ContentDelta.parse((JSONObject) data), ((JSONObject) data).optInt("u") == 1);
+        break;
+      case "blur":
+        mTextChangeCoalescer.onBlur();
+        if (mHistory != null) {
+          mHistory.close();
+        }
+        break;
+      case "stats":
+        stats((String) data);
+        break;
+      case "history":
+        history((String) data);
+        break;
+      case "selection":
+        selection((String) data);
+        break;
+      case "paste":
+        paste((JSONObject) data);
+        break;
+      case "find":
+        findResult((String) data);
+        break;
+      case "transport":
+        if (mTransport != Transport.JAVASCRIPT_INTERFACE) {
+          closeBridge();
+        }
+        break;
+      default:
+        Log.w("RichEditor", "Unknown message type: " + type);
+        break;
+    }
+  }
+
   private void callback(String text) {
-    mContents = text.replaceFirst(CALLBACK_SCHEME, "");
-    if (mTextChangeListener != null) {
-      mTextChangeListener.onTextChange(mContents);
+    setContents(text);
+    mTextChangeCoalescer.submit();
+  }
+
+  private void selection(String text) {
+    String[] parts = text.split(",");
+    if (parts.length != 4) {
+      return;
+    }
+    try {
+      int[] selection = new int[4];
+      for (int i = 0; i < 4; i++) {
+        selection[i] = Integer.parseInt(parts[i]);
+      }
+      mSelection = selection;
+    } catch (NumberFormatException e) {
+      Log.e("RichEditor", "Malformed selection: " + text);
+    }
+  }
+
+  private void findResult(String text) {
+    int separator = text.indexOf(',');
+    if (mFindListener == null || separator < 0) {
+      return;
+    }
+    try {
+      mFindListener.onFindResult(Integer.parseInt(text.substring(0, separator)),
+        Integer.parseInt(text.substring(separator + 1)));
+    } catch (NumberFormatException e) {
+      Log.e("RichEditor", "Malformed find result: " + text);
+    }
+  }
+
+  private void paste(JSONObject data) {
+    final PasteSanitizer sanitizer = mPasteSanitizer;
+    final int id = data.optInt("i");
+    final String html = data.optString("h");
+    final String text = data.optString("t");
+    final long start = SystemClock.uptimeMillis();
+    mPasteId = id;
+    if (sanitizer == null) {
+      exec("javascript:RE.endPaste(" + id + ");");
+      return;
+    }
+
+    EditorExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        final String sanitized;
+        try {
+          sanitized = html.isEmpty() ? sanitizer.sanitizeText(text) : sanitizer.sanitize(html);
+        } catch (RuntimeException e) {
+          Log.e("RichEditor", "Could not sanitize pasted content", e);
+          post(new Runnable() {
+            @Override
+            public void run() {
+              exec("javascript:RE.endPaste(" + id + ");");
+            }
+          });
+          return;
+        }
+        final long sanitizeMillis = SystemClock.uptimeMillis() - start;
+        // Chunks end between top-level nodes, so each one is balanced html. There is always
+        // one, the first chunk replaces the selection.
+        final List<String> chunks = new ArrayList<>();
+        StringBuilder chunk = new StringBuilder();
+        for (String block : HtmlText.splitBlocks(sanitized)) {
+          if (chunk.length() > 0 && chunk.length() + block.length() > PASTE_CHUNK_SIZE) {
+            chunks.add(pasteChunk(id, chunk));
+            chunk.setLength(0);
+          }
+          chunk.append(block);
+        }
+        if (chunk.length() > 0 || chunks.isEmpty()) {
+          chunks.add(pasteChunk(id, chunk));
+        }
+        final int pastedLength = html.isEmpty() ? text.length() : html.length();
+
+        post(new Runnable() {
+          @Override
+          public void run() {
+            if (id == mPasteId) {
+              sendPasteChunk(id, chunks, 0, new Runnable() {
+                @Override
+                public void run() {
+                  if (mPasteListener != null) {
+                    mPasteListener.onPaste(pastedLength, sanitized.length(), sanitizeMillis,
+                      SystemClock.uptimeMillis() - start);
+                  }
+                }
+              });
+            }
+          }
+        });
+      }
+    });
+  }
+
+  private static String pasteChunk(int id, CharSequence html) {
+    StringBuilder script = new StringBuilder(html.length() + 64);
+    script.append("RE.pasteChunk(").append(id).append(",'");
+    Utils.appendJsString(script, html.toString(), 0, html.length());
+    return script.append("')").toString();
+  }
+
+  private void sendPasteChunk(final int id, final List<String> chunks, final int index,
+                              final Runnable onComplete) {
+    if (index == chunks.size()) {
+      evaluate("RE.endPaste(" + id + ")", new ValueCallback<String>() {
+        @Override
+        public void onReceiveValue(String value) {
+          if ("true".equals(value)) {
+            onComplete.run();
+          }
+        }
+      });
+      return;
     }
+
+    // Like streaming, the next chunk waits until the editor has inserted this one.
+    evaluate(chunks.get(index), new ValueCallback<String>() {
+      @Override
+      public void onReceiveValue(String value) {
+        if (id == mPasteId && "true".equals(value)) {
+          sendPasteChunk(id, chunks, index + 1, onComplete);
+        }
+      }
+    });
   }
 
+  private void history(String event) {
+    switch (event) {
+      case "undo":
+        undo();
+        break;
+      case "redo":
+        redo();
+        break;
+      case "applied":
+        if (mHistory != null) {
+          mHistory.onApplied();
+        }
+        break;
+      case "rejected":
+        if (mHistory != null) {
+          mHistory.onRejected();
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void stats(String text) {
+    int separator = text.indexOf(',');
+    if (mStatsChangeListener == null || separator < 0) {
+      return;
+    }
+    try {
+      mStatsChangeListener.onStatsChange(Integer.parseInt(text.substring(0, separator)),
+        Integer.parseInt(text.substring(separator + 1)));
+    } catch (NumberFormatException e) {
+      Log.e("RichEditor", "Malformed stats: " + text);
+    }
+  }
+
+  private void malformedDelta(JSONException e) {
+    Log.e("RichEditor", "Malformed content delta", e);
+    if (mDeltaEnabled) {
+      exec("javascript:RE.resetDelta();");
+    }
+  }
+
+  /**
+   * @param fromHistory whether the delta is an undo or redo applied by the editor
+   */
+  private void delta(ContentDelta delta, boolean fromHistory) {
+    List<String> before = null;
+    if (mHistory != null && !fromHistory) {
+      if (delta.isReset()) {
+        before = mDocument.copyBlocks(0, mDocument.getBlockCount());
+      } else if (delta.getStart() + delta.getDeleteCount() <= mDocument.getBlockCount()) {
+        before = mDocument.copyBlocks(delta.getStart(), delta.getDeleteCount());
+      }
+    }
+    if (!mDocument.apply(delta)) {
+      // Out of sync with the editor, ask for the whole document again.
+      exec("javascript:RE.resetDelta();");
+      return;
+    }
+    mContents = null;
+    mMirror.apply(delta);
+    if (mJournal != null) {
+      mJournal.append(delta);
+    }
+    if (mHistory != null && !fromHistory) {
+      mHistory.record(delta, before, SystemClock.uptimeMillis());
+    }
+
+    if (mContentDeltaListener != null) {
+      mContentDeltaListener.onContentDelta(delta);
+    }
+    mTextChangeCoalescer.submit();
+  }
+
+  /**
+   * The editor sends the state as a bitmask of {@link Type} ordinals.
+   */
   private void stateCheck(String text) {
-    String state = text.replaceFirst(STATE_SCHEME, "").toUpperCase(Locale.ENGLISH);
-    List<Type> types = new ArrayList<>();
-    for (Type type : Type.values()) {
-      if (TextUtils.indexOf(state, type.name()) != -1) {
-        types.add(type);
+    boolean changed;
+    try {
+      changed = mDecorationState.update(text);
+    } catch (NumberFormatException e) {
+      Log.e("RichEditor", "Malformed decoration state: " + text);
+      return;
+    }
+    if (!changed) {
+      if (mMetrics != null) {
+        mMetrics.onEventsCoalesced("state", 1);
+      }
+      return;
+    }
+
+    if (mDecorationStateListener != null) {
+      mDecorationStateListener.onStateChangeListener(mDecorationState.getText(),
+        mDecorationState.getTypes());
+    }
+  }
+
+  private void applyAttributes(Context context, AttributeSet attrs) {
+    final int[] attrsArray = new int[]{
+      android.R.attr.gravity
+    };
+    TypedArray ta = context.obtainStyledAttributes(attrs, attrsArray);
+
+    int gravity = ta.getInt(0, NO_ID);
+    switch (gravity) {
+      case Gravity.LEFT:
+        exec("javascript:RE.setTextAlign(\"left\")");
+        break;
+      case Gravity.RIGHT:
+        exec("javascript:RE.setTextAlign(\"right\")");
+        break;
+      case Gravity.TOP:
+        exec("javascript:RE.setVerticalAlign(\"top\")");
+        break;
+      case Gravity.BOTTOM:
+        exec("javascript:RE.setVerticalAlign(\"bottom\")");
+        break;
+      case Gravity.CENTER_VERTICAL:
+        exec("javascript:RE.setVerticalAlign(\"middle\")");
+        break;
+      case Gravity.CENTER_HORIZONTAL:
+        exec("javascript:RE.setTextAlign(\"center\")");
+        break;
+      case Gravity.CENTER:
+        exec("javascript:RE.setVerticalAlign(\"middle\")");
+        exec("javascript:RE.setTextAlign(\"center\")");
+        break;
+    }
+
+    ta.recycle();
+  }
+
+  public void setHtml(String contents) {
+    if (contents == null) {
+      contents = "";
+    }
+    mStreamId++;
+    try {
+      exec("javascript:RE.setHtml('" + URLEncoder.encode(contents, "UTF-8") + "');");
+    } catch (UnsupportedEncodingException e) {
+      // No handling
+    }
+    setContents(contents);
+  }
+
+  /**
+   * Loads a large document without blocking the UI thread: it is escaped on a background
+   * thread, sent to the editor in bounded chunks, one chunk per evaluation, and rendered
+   * progressively as the chunks arrive. A later call to this method or to
+   * {@link #setHtml(String)} cancels a load in progress.
+   */
+  public void setHtmlStreaming(final String contents, final OnHtmlLoadListener listener) {
+    final String html = contents == null ? "" : contents;
+    final int id = ++mStreamId;
+    setContents(html);
+
+    EditorExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        final List<Integer> ends = HtmlText.chunkEnds(html, STREAM_CHUNK_SIZE);
+        final List<String> chunks = new ArrayList<>(ends.size());
+        int start = 0;
+        for (int end : ends) {
+          StringBuilder chunk = new StringBuilder(end - start + 64);
+          chunk.append("RE.appendStream(").append(id).append(",'");
+          Utils.appendJsString(chunk, html, start, end);
+          chunk.append("')");
+          chunks.add(chunk.toString());
+          start = end;
+        }
+
+        post(new Runnable() {
+          @Override
+          public void run() {
+            if (id != mStreamId) {
+              return;
+            }
+            exec("javascript:RE.beginStream(" + id + ");");
+            sendStreamChunk(id, chunks, ends, 0, html.length(), listener);
+          }
+        });
       }
+    });
+  }
+
+  private void sendStreamChunk(final int id, final List<String> chunks, final List<Integer> ends,
+                               final int index, final int total,
+                               final OnHtmlLoadListener listener) {
+    if (index == chunks.size()) {
+      evaluate("RE.endStream(" + id + ")", new ValueCallback<String>() {
+        @Override
+        public void onReceiveValue(String value) {
+          if (id == mStreamId && listener != null) {
+            listener.onComplete();
+          }
+        }
+      });
+      return;
     }
 
-    if (mDecorationStateListener != null) {
-      mDecorationStateListener.onStateChangeListener(state, types);
-    }
+    // The next chunk is only sent once the editor has taken this one.
+    evaluate(chunks.get(index), new ValueCallback<String>() {
+      @Override
+      public void onReceiveValue(String value) {
+        if (id != mStreamId) {
+          return;
+        }
+        if (listener != null) {
+          listener.onProgress(ends.get(index), total);
+        }
+        sendStreamChunk(id, chunks, ends, index + 1, total, listener);
+      }
+    });
+  }
+
+  /**
+   * @return the html as of the last content notification from the editor, see
+   * {@link #getHtml(ContentCallback)} for a read straight from the editor
+   */
+  public String getHtml() {
+    if (mContents == null && mDocument.getVersion() != ContentDelta.NO_VERSION) {
+      mContents = mDocument.getHtml();
+      mContentsVersion = mDocument.getVersion();
+    }
+    return mContents;
+  }
+
+  /**
+   * @return a block model of the content as of the last content notification, for text queries
+   * that do not need a round trip to the editor
+   */
+  public DocumentMirror getDocument() {
+    return mMirror;
+  }
+
+  private void setContents(String html) {
+    mContents = html;
+    mContentsVersion = ContentDelta.NO_VERSION;
+    // In delta mode the mirror follows the deltas, which are based on the editor's own blocks.
+    if (!mDeltaEnabled) {
+      mMirror.setHtml(html);
+    }
+  }
+
+  /**
+   * Reads the html from the editor after all previously issued commands have run. The content
+   * is only transferred when the document changed since the last read.
+   */
+  public void getHtml(final ContentCallback callback) {
+    // An unchanged read answers with the contents as of now, a later setHtml may replace them
+    // before the answer arrives.
+    final String contents = getHtml();
+    final long version = mContentsVersion;
+    evaluate("RE.readHtml(" + version + ")", new ValueCallback<String>() {
+      @Override
+      public void onReceiveValue(String value) {
+        ContentRead read = ContentRead.parse(value);
+        if (read == null || read.content == null) {
+          callback.onContent(contents, version);
+          return;
+        }
+        if (mContents == contents && mContentsVersion == version) {
+          mContents = read.content;
+          mContentsVersion = read.version;
+          if (!mDeltaEnabled) {
+            mMirror.setHtml(mContents);
+          }
+        }
+        callback.onContent(read.content, read.version);
+      }
+    });
+  }
+
+  /**
+   * Reads the plain text from the editor, see {@link #getHtml(ContentCallback)}.
+   */
+  public void getText(final ContentCallback callback) {
+    final String text = mText;
+    final long version = mTextVersion;
+    evaluate("RE.readText(" + version + ")", new ValueCallback<String>() {
+      @Override
+      public void onReceiveValue(String value) {
+        ContentRead read = ContentRead.parse(value);
+        if (read == null || read.content == null) {
+          callback.onContent(text, version);
+          return;
+        }
+        if (mText == text && mTextVersion == version) {
+          mText = read.content;
+          mTextVersion = read.version;
+        }
+        callback.onContent(read.content, read.version);
+      }
+    });
+  }
+
+  /**
+   * For documents with thousands of paragraphs: blocks outside the viewport skip layout and
+   * paint and take an estimated height until they are scrolled near. Selection, search and
+   * content are not affected. Needs a WebView based on Chrome 85 or later, older ones ignore it.
+   */
+  public void setLongDocumentMode(boolean enabled) {
+    exec("javascript:RE.setLongDocumentMode(" + enabled + ");");
+  }
+
+  /**
+   * For documents with many embeds: images, video, audio and frames only load when they come
+   * near the viewport. Until then frames show a placeholder, the thumbnail for YouTube, and
+   * videos without a poster a play button. {@link #getHtml()} and deltas are not affected.
+   * Needs a WebView based on Chrome 51 or later, older ones ignore it.
+   */
+  public void setLazyMedia(boolean enabled) {
+    setLazyMedia(enabled, null);
+  }
+
+  /**
+   * @param videoPoster url of the image shown for videos without a poster until they load, null
+   *                    for the default play button
+   */
+  public void setLazyMedia(boolean enabled, String videoPoster) {
+    StringBuilder script = new StringBuilder("javascript:RE.setLazyMedia(").append(enabled);
+    if (videoPoster != null) {
+      script.append(", '");
+      Utils.appendJsString(script, videoPoster, 0, videoPoster.length());
+      script.append('\'');
+    }
+    exec(script.append(");").toString());
+  }
+
+  public void setOnFindListener(OnFindListener listener) {
+    mFindListener = listener;
+  }
+
+  public void find(String query) {
+    find(query, false);
+  }
+
+  /**
+   * Highlights every match of {@code query} and scrolls to the first one after the caret. The
+   * editor keeps the text of each block indexed and only searches the blocks an edit touched
+   * again, the {@link OnFindListener} gets the updated counts. An empty query ends the search.
+   */
+  public void find(String query, boolean matchCase) {
+    StringBuilder script = new StringBuilder("javascript:RE.setFind('");
+    if (query != null) {
+      Utils.appendJsString(script, query, 0, query.length());
+    }
+    exec(script.append("', ").append(matchCase).append(");").toString());
+  }
+
+  public void findNext() {
+    exec("javascript:RE.findMove(1);");
+  }
+
+  public void findPrevious() {
+    exec("javascript:RE.findMove(-1);");
   }
 
-  private void applyAttributes(Context context, AttributeSet attrs) {
-    final int[] attrsArray = new int[]{
-      android.R.attr.gravity
-    };
-    TypedArray ta = context.obtainStyledAttributes(attrs, attrsArray);
+  public void clearFind() {
+    exec("javascript:RE.setFind('', false);");
+  }
 
-    int gravity = ta.getInt(0, NO_ID);
-    switch (gravity) {
-      case Gravity.LEFT:
-        exec("javascript:RE.setTextAlign(\"left\")");
-        break;
-      case Gravity.RIGHT:
-        exec("javascript:RE.setTextAlign(\"right\")");
-        break;
-      case Gravity.TOP:
-        exec("javascript:RE.setVerticalAlign(\"top\")");
-        break;
-      case Gravity.BOTTOM:
-        exec("javascript:RE.setVerticalAlign(\"bottom\")");
-        break;
-      case Gravity.CENTER_VERTICAL:
-        exec("javascript:RE.setVerticalAlign(\"middle\")");
-        break;
-      case Gravity.CENTER_HORIZONTAL:
-        exec("javascript:RE.setTextAlign(\"center\")");
-        break;
-      case Gravity.CENTER:
-        exec("javascript:RE.setVerticalAlign(\"middle\")");
-        exec("javascript:RE.setTextAlign(\"center\")");
-        break;
-    }
+  /**
+   * Replaces the current match as if it was typed over and moves on to the next one.
+   */
+  public void replace(String replacement) {
+    exec(replaceScript("RE.replaceMatch", replacement));
+  }
 
-    ta.recycle();
+  /**
+   * Replaces every match in one pass, without reloading the content. The change arrives as one
+   * delta and is a single undo step with {@link #setHistoryEnabled(boolean)}; the browser's own
+   * undo does not cover it.
+   */
+  public void replaceAll(String replacement) {
+    exec(replaceScript("RE.replaceAllMatches", replacement));
   }
 
-  public void setHtml(String contents) {
-    if (contents == null) {
-      contents = "";
-    }
-    try {
-      exec("javascript:RE.setHtml('" + URLEncoder.encode(contents, "UTF-8") + "');");
-    } catch (UnsupportedEncodingException e) {
-      // No handling
+  private static String replaceScript(String function, String replacement) {
+    StringBuilder script = new StringBuilder("javascript:").append(function).append("('");
+    if (replacement != null) {
+      Utils.appendJsString(script, replacement, 0, replacement.length());
     }
-    mContents = contents;
+    return script.append("');").toString();
   }
 
-  public String getHtml() {
-    return mContents;
+  /**
+   * Forces a layout of the whole document and reports its duration, to compare
+   * {@link #setLongDocumentMode(boolean)} with the default on a given document and device.
+   */
+  public void measureLayout(final OnLayoutMeasuredListener listener) {
+    evaluate("RE.measureLayout()", new ValueCallback<String>() {
+      @Override
+      public void onReceiveValue(String value) {
+        if (value == null) {
+          return;
+        }
+        try {
+          JSONObject result = new JSONObject(value);
+          listener.onLayoutMeasured(result.getDouble("ms"), result.getInt("h"),
+            result.getInt("n"));
+        } catch (JSONException e) {
+          Log.e("RichEditor", "Malformed layout measurement: " + value);
+        }
+      }
+    });
+  }
+
+  /**
+   * Stops the editor from sending the whole html on every edit. Use this when content is only
+   * needed on demand through {@link #getHtml(ContentCallback)}; {@link #getHtml()} and the
+   * {@link OnTextChangeListener} will then not see edits. Has no effect in delta mode.
+   */
+  public void setContentCallbackEnabled(boolean enabled) {
+    exec("javascript:RE.setContentCallbackEnabled(" + enabled + ");");
   }
 
   public void setEditorFontColor(int color) {
@@ -227,28 +1298,136 @@ public class RichEditor extends WebView {
     super.setBackgroundColor(color);
   }
 
+  /**
+   * Sets how {@link #setBackgroundResource(int)} and {@link #setBackground(Drawable)} encode
+   * images. Defaults to PNG at quality 100.
+   */
+  public void setBackgroundImageFormat(Bitmap.CompressFormat format, int quality) {
+    mBackgroundFormat = format;
+    mBackgroundQuality = quality;
+  }
+
+  /**
+   * Sets the size background images are scaled down to before encoding. Defaults to the size of
+   * the editor, or of the screen before layout.
+   */
+  public void setBackgroundImageMaxSize(int maxWidth, int maxHeight) {
+    mBackgroundMaxWidth = maxWidth;
+    mBackgroundMaxHeight = maxHeight;
+  }
+
+  /**
+   * Decodes, scales and encodes the image on a background thread. The result is cached, so
+   * setting the same resource again does not encode it again.
+   */
   @Override
-  public void setBackgroundResource(int resid) {
-    Bitmap bitmap = Utils.decodeResource(getContext(), resid);
-    String base64 = Utils.toBase64(bitmap);
-    bitmap.recycle();
+  public void setBackgroundResource(final int resid) {
+    final Context context = getContext();
+    final Bitmap.CompressFormat format = backgroundFormat();
+    final int quality = backgroundQuality();
+    final int maxWidth = backgroundMaxWidth();
+    final int maxHeight = backgroundMaxHeight();
+    final String key = ImageEncoder.resourceKey(resid, format, quality, maxWidth, maxHeight);
+    final int id = ++mBackgroundId;
+    if (setCachedBackgroundImage(key)) {
+      return;
+    }
 
-    exec("javascript:RE.setBackgroundImage('url(data:image/png;base64," + base64 + ")');");
+    EditorExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        Bitmap bitmap = Utils.decodeResource(context, resid, maxWidth, maxHeight);
+        if (bitmap == null) {
+          Log.e("RichEditor", "Could not decode background resource " + resid);
+          return;
+        }
+        setBackgroundImage(id, ImageEncoder.encode(key, bitmap, true, format, quality, maxWidth,
+          maxHeight));
+      }
+    });
   }
 
+  /**
+   * Encodes the image on a background thread, see {@link #setBackgroundResource(int)}.
+   * Drawables sharing a constant state share the cached result.
+   */
   @Override
   public void setBackground(Drawable background) {
-    Bitmap bitmap = Utils.toBitmap(background);
-    String base64 = Utils.toBase64(bitmap);
-    bitmap.recycle();
+    final int id = ++mBackgroundId;
+    if (background == null) {
+      exec("javascript:RE.setBackgroundImage('none');");
+      return;
+    }
+
+    final Bitmap.CompressFormat format = backgroundFormat();
+    final int quality = backgroundQuality();
+    final int maxWidth = backgroundMaxWidth();
+    final int maxHeight = backgroundMaxHeight();
+    final String key = ImageEncoder.drawableKey(background, format, quality, maxWidth, maxHeight);
+    if (setCachedBackgroundImage(key)) {
+      return;
+    }
 
-    exec("javascript:RE.setBackgroundImage('url(data:image/png;base64," + base64 + ")');");
+    // Drawables are only safe to draw here, compression happens in the background.
+    final Bitmap bitmap = Utils.toBitmap(background, maxWidth, maxHeight);
+    final boolean owned = !(background instanceof BitmapDrawable);
+    EditorExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        setBackgroundImage(id, ImageEncoder.encode(key, bitmap, owned, format, quality, maxWidth,
+          maxHeight));
+      }
+    });
   }
 
   public void setBackground(String url) {
+    mBackgroundId++;
     exec("javascript:RE.setBackgroundImage('url(" + url + ")');");
   }
 
+  private boolean setCachedBackgroundImage(String key) {
+    String uri = ImageEncoder.get(key);
+    if (uri == null) {
+      return false;
+    }
+    exec("javascript:RE.setBackgroundImage('url(" + uri + ")');");
+    return true;
+  }
+
+  private void setBackgroundImage(final int id, final String uri) {
+    post(new Runnable() {
+      @Override
+      public void run() {
+        // A newer background may have been set while this one was encoding.
+        if (id == mBackgroundId) {
+          exec("javascript:RE.setBackgroundImage('url(" + uri + ")');");
+        }
+      }
+    });
+  }
+
+  private Bitmap.CompressFormat backgroundFormat() {
+    return mBackgroundFormat != null ? mBackgroundFormat : Bitmap.CompressFormat.PNG;
+  }
+
+  private int backgroundQuality() {
+    return mBackgroundFormat != null ? mBackgroundQuality : 100;
+  }
+
+  private int backgroundMaxWidth() {
+    if (mBackgroundMaxWidth > 0) {
+      return mBackgroundMaxWidth;
+    }
+    return getWidth() > 0 ? getWidth() : getResources().getDisplayMetrics().widthPixels;
+  }
+
+  private int backgroundMaxHeight() {
+    if (mBackgroundMaxHeight > 0) {
+      return mBackgroundMaxHeight;
+    }
+    return getHeight() > 0 ? getHeight() : getResources().getDisplayMetrics().heightPixels;
+  }
+
   public void setEditorWidth(int px) {
     exec("javascript:RE.setWidth('" + px + "px');");
   }
@@ -265,25 +1444,75 @@ public class RichEditor extends WebView {
     exec("javascript:RE.setInputEnabled(" + inputEnabled + ")");
   }
 
+  /**
+   * Applies the style in one call. Only the properties that differ from the style set before are
+   * sent, so switching themes restyles the editor without reloading it. Pass null to go back to
+   * the defaults.
+   */
+  public void setEditorStyle(EditorStyle style) {
+    EditorStyle previous = mEditorStyle;
+    mEditorStyle = style;
+    String script;
+    if (style == null) {
+      script = previous == null ? null : new EditorStyle.Builder().build().toScript(previous);
+    } else {
+      script = style.toScript(previous);
+    }
+    if (script != null) {
+      exec(script);
+    }
+  }
+
+  public EditorStyle getEditorStyle() {
+    return mEditorStyle;
+  }
+
+  /**
+   * Adds a stylesheet to the editor page. A stylesheet that is already loaded is not added again.
+   */
   public void loadCSS(String cssFile) {
-    String jsCSSImport = "(function() {" +
-      "    var head  = document.getElementsByTagName(\"head\")[0];" +
-      "    var link  = document.createElement(\"link\");" +
-      "    link.rel  = \"stylesheet\";" +
-      "    link.type = \"text/css\";" +
-      "    link.href = \"" + cssFile + "\";" +
-      "    link.media = \"all\";" +
-      "    head.appendChild(link);" +
-      "}) ();";
-    exec("javascript:" + jsCSSImport + "");
+    StringBuilder script = new StringBuilder("javascript:RE.loadCSS('");
+    Utils.appendJsString(script, cssFile, 0, cssFile.length());
+    exec(script.append("');").toString());
   }
 
   public void undo() {
-    exec("javascript:RE.undo();");
+    if (mHistory == null) {
+      exec("javascript:RE.undo();");
+      return;
+    }
+    EditHistory.Step step = mHistory.undo();
+    if (step != null) {
+      applyHistoryStep(step.start, step.inserted.size(), step.removed);
+    }
   }
 
   public void redo() {
-    exec("javascript:RE.redo();");
+    if (mHistory == null) {
+      exec("javascript:RE.redo();");
+      return;
+    }
+    EditHistory.Step step = mHistory.redo();
+    if (step != null) {
+      applyHistoryStep(step.start, step.removed.size(), step.inserted);
+    }
+  }
+
+  private void applyHistoryStep(int start, int deleteCount, List<String> blocks) {
+    StringBuilder script = new StringBuilder("javascript:RE.applyDelta(")
+      .append(mDocument.getVersion()).append(", ")
+      .append(start).append(", ")
+      .append(deleteCount).append(", [");
+    for (int i = 0; i < blocks.size(); i++) {
+      if (i > 0) {
+        script.append(", ");
+      }
+      script.append('\'');
+      Utils.appendJsString(script, blocks.get(i), 0, blocks.get(i).length());
+      script.append('\'');
+    }
+    script.append("]);");
+    exec(script.toString());
   }
 
   public void setBold() {
@@ -311,17 +1540,13 @@ public class RichEditor extends WebView {
   }
 
   public void setTextColor(int color) {
-    exec("javascript:RE.prepareInsert();");
-
     String hex = convertHexColorString(color);
-    exec("javascript:RE.setTextColor('" + hex + "');");
+    exec("javascript:RE.prepareInsert();RE.setTextColor('" + hex + "');");
   }
 
   public void setTextBackgroundColor(int color) {
-    exec("javascript:RE.prepareInsert();");
-
     String hex = convertHexColorString(color);
-    exec("javascript:RE.setTextBackgroundColor('" + hex + "');");
+    exec("javascript:RE.prepareInsert();RE.setTextBackgroundColor('" + hex + "');");
   }
 
   public void setFontSize(int fontSize) {
@@ -372,8 +1597,7 @@ public class RichEditor extends WebView {
   }
 
   public void insertImage(String url, String alt) {
-    exec("javascript:RE.prepareInsert();");
-    exec("javascript:RE.insertImage('" + url + "', '" + alt + "');");
+    exec("javascript:RE.prepareInsert();RE.insertImage('" + url + "', '" + alt + "');");
   }
 
   /**
@@ -384,8 +1608,7 @@ public class RichEditor extends WebView {
    * @param width
    */
   public void insertImage(String url, String alt, int width) {
-    exec("javascript:RE.prepareInsert();");
-    exec("javascript:RE.insertImageW('" + url + "', '" + alt + "','" + width + "');");
+    exec("javascript:RE.prepareInsert();RE.insertImageW('" + url + "', '" + alt + "','" + width + "');");
   }
 
   /**
@@ -398,53 +1621,43 @@ public class RichEditor extends WebView {
    * @param height
    */
   public void insertImage(String url, String alt, int width, int height) {
-    exec("javascript:RE.prepareInsert();");
-    exec("javascript:RE.insertImageWH('" + url + "', '" + alt + "','" + width + "', '" + height + "');");
+    exec("javascript:RE.prepareInsert();RE.insertImageWH('" + url + "', '" + alt + "','" + width + "', '" + height + "');");
   }
 
   public void insertVideo(String url) {
-    exec("javascript:RE.prepareInsert();");
-    exec("javascript:RE.insertVideo('" + url + "');");
+    exec("javascript:RE.prepareInsert();RE.insertVideo('" + url + "');");
   }
 
   public void insertVideo(String url, int width) {
-    exec("javascript:RE.prepareInsert();");
-    exec("javascript:RE.insertVideoW('" + url + "', '" + width + "');");
+    exec("javascript:RE.prepareInsert();RE.insertVideoW('" + url + "', '" + width + "');");
   }
 
   public void insertVideo(String url, int width, int height) {
-    exec("javascript:RE.prepareInsert();");
-    exec("javascript:RE.insertVideoWH('" + url + "', '" + width + "', '" + height + "');");
+    exec("javascript:RE.prepareInsert();RE.insertVideoWH('" + url + "', '" + width + "', '" + height + "');");
   }
 
   public void insertAudio(String url) {
-    exec("javascript:RE.prepareInsert();");
-    exec("javascript:RE.insertAudio('" + url + "');");
+    exec("javascript:RE.prepareInsert();RE.insertAudio('" + url + "');");
   }
 
   public void insertYoutubeVideo(String url) {
-    exec("javascript:RE.prepareInsert();");
-    exec("javascript:RE.insertYoutubeVideo('" + url + "');");
+    exec("javascript:RE.prepareInsert();RE.insertYoutubeVideo('" + url + "');");
   }
 
   public void insertYoutubeVideo(String url, int width) {
-    exec("javascript:RE.prepareInsert();");
-    exec("javascript:RE.insertYoutubeVideoW('" + url + "', '" + width + "');");
+    exec("javascript:RE.prepareInsert();RE.insertYoutubeVideoW('" + url + "', '" + width + "');");
   }
 
   public void insertYoutubeVideo(String url, int width, int height) {
-    exec("javascript:RE.prepareInsert();");
-    exec("javascript:RE.insertYoutubeVideoWH('" + url + "', '" + width + "', '" + height + "');");
+    exec("javascript:RE.prepareInsert();RE.insertYoutubeVideoWH('" + url + "', '" + width + "', '" + height + "');");
   }
 
   public void insertLink(String href, String title) {
-    exec("javascript:RE.prepareInsert();");
-    exec("javascript:RE.insertLink('" + href + "', '" + title + "');");
+    exec("javascript:RE.prepareInsert();RE.insertLink('" + href + "', '" + title + "');");
   }
 
   public void insertTodo() {
-    exec("javascript:RE.prepareInsert();");
-    exec("javascript:RE.setTodo('" + Utils.getCurrentTime() + "');");
+    exec("javascript:RE.prepareInsert();RE.setTodo('" + Utils.getCurrentTime() + "');");
   }
 
   public void focusEditor() {
@@ -456,20 +1669,286 @@ public class RichEditor extends WebView {
     exec("javascript:RE.blurFocus();");
   }
 
+  /**
+   * Clears content, styles, listeners and undo history so that {@link RichEditorPool} can hand
+   * the editor out again.
+   */
+  void reset() {
+    mTextChangeListener = null;
+    mContentDeltaListener = null;
+    mDecorationStateListener = null;
+    mStatsChangeListener = null;
+    mPasteListener = null;
+    mFindListener = null;
+    mEditorStyle = null;
+    mPasteSanitizer = null;
+    mPasteId++;
+    mLoadListener = null;
+    mResourceProvider = null;
+    mTextChangeCoalescer.setPolicy(CoalescingPolicy.IMMEDIATE);
+    mStreamId++;
+    mBackgroundId++;
+    mContents = null;
+    mContentsVersion = ContentDelta.NO_VERSION;
+    mText = null;
+    mTextVersion = ContentDelta.NO_VERSION;
+    mDeltaEnabled = false;
+    mDocument.clear();
+    mMirror.clear();
+    mHistory = null;
+    mHistoryMemoryLimit = 0;
+    mJournal = null;
+    mSelection = null;
+    // The saved files may still belong to the screen the editor came from.
+    mSavedHtml = null;
+    mSavedHandle = null;
+    mDecorationState.reset();
+    super.setPadding(0, 0, 0, 0);
+    scrollTo(0, 0);
+    exec("javascript:RE.reset();");
+    flush();
+  }
+
+  /**
+   * Also stops the editor from reporting the selection, which is only needed for saving state.
+   */
+  @Override
+  public void setSaveEnabled(boolean enabled) {
+    super.setSaveEnabled(enabled);
+    updateSelectionTracking();
+  }
+
+  private void updateSelectionTracking() {
+    // A report per selection change would be a navigation each with the url transport.
+    boolean enabled = isSaveEnabled() && mTransport == Transport.JAVASCRIPT_INTERFACE;
+    if (!enabled) {
+      mSelection = null;
+    }
+    exec("javascript:RE.setSelectionTracking(" + enabled + ");");
+  }
+
+  /**
+   * Saves content, selection and scroll position. Documents too large for a Bundle are written
+   * to a file on a background thread and only a handle to it is saved. The selection is only
+   * saved with {@link Transport#JAVASCRIPT_INTERFACE}.
+   */
+  @Override
+  protected Parcelable onSaveInstanceState() {
+    SavedState state = new SavedState(super.onSaveInstanceState());
+    String html = getHtml();
+    if (html != null && html.length() <= InstanceStateStore.INLINE_MAX_LENGTH) {
+      state.html = html;
+      // The framework keeps only the latest state of a view, an older file is not needed.
+      if (mSavedHandle != null) {
+        InstanceStateStore.release(getContext(), mSavedHandle);
+        mSavedHandle = null;
+        mSavedHtml = null;
+      }
+    } else if (html != null) {
+      // Saving the same document again, for example on every onStop, does not write it again.
+      if (html != mSavedHtml) {
+        mSavedHtml = html;
+        mSavedHandle = InstanceStateStore.put(getContext(), html, mSavedHandle);
+      }
+      state.handle = mSavedHandle;
+    } else {
+      // The restored document is still loading.
+      state.handle = mSavedHandle;
+    }
+    state.selection = mSelection;
+    state.scrollY = getScrollY();
+    return state;
+  }
+
+  /**
+   * Restores what {@link #onSaveInstanceState()} saved. A document kept in a file is read and
+   * loaded with {@link #setHtmlStreaming} off the UI thread; a later {@link #setHtml(String)}
+   * cancels it.
+   */
+  @Override
+  protected void onRestoreInstanceState(Parcelable state) {
+    if (!(state instanceof SavedState)) {
+      super.onRestoreInstanceState(state);
+      return;
+    }
+    final SavedState saved = (SavedState) state;
+    super.onRestoreInstanceState(saved.getSuperState());
+    mSelection = saved.selection;
+
+    if (saved.html != null) {
+      setHtml(saved.html);
+      restoreSelectionAndScroll(saved.selection, saved.scrollY);
+    } else if (saved.handle != null) {
+      mSavedHandle = saved.handle;
+      final int id = ++mStreamId;
+      InstanceStateStore.get(getContext(), saved.handle, new InstanceStateStore.Callback() {
+        @Override
+        public void onLoaded(String html) {
+          if (id != mStreamId || html == null) {
+            return;
+          }
+          mSavedHtml = html;
+          setHtmlStreaming(html, new OnHtmlLoadListener() {
+            @Override
+            public void onProgress(int loaded, int total) {
+            }
+
+            @Override
+            public void onComplete() {
+              restoreSelectionAndScroll(saved.selection, saved.scrollY);
+            }
+          });
+        }
+      });
+    }
+  }
+
+  private void restoreSelectionAndScroll(int[] selection, int scrollY) {
+    String range = selection == null ? "null"
+      : "[" + selection[0] + ", " + selection[1] + ", " + selection[2] + ", " + selection[3] + "]";
+    exec("javascript:RE.restoreState(" + range + ", " + scrollY + ");");
+  }
+
+  @Override
+  protected void onDetachedFromWindow() {
+    mTextChangeCoalescer.flush();
+    if (mJournal != null) {
+      mJournal.sync();
+    }
+    super.onDetachedFromWindow();
+  }
+
   private String convertHexColorString(int color) {
-    return String.format("#%06X", (0xFFFFFF & color));
+    return Utils.toHexColorString(color);
   }
 
+  /**
+   * Queues a script for the editor page. Scripts issued within the same frame are evaluated
+   * together in one call, in the order they were issued; scripts issued before the page has
+   * loaded are evaluated once it has.
+   */
   protected void exec(final String trigger) {
+    enqueue(new Command(trigger.startsWith(JAVASCRIPT_SCHEME)
+      ? trigger.substring(JAVASCRIPT_SCHEME.length()) : trigger, null));
+  }
+
+  /**
+   * Queues a script whose result is passed to {@code callback}, after the scripts queued before.
+   * Below KitKat the result is not available and the callback receives null.
+   */
+  private void evaluate(String script, ValueCallback<String> callback) {
+    enqueue(new Command(script, callback));
+  }
+
+  private void enqueue(Command command) {
+    if (mPendingCommands == null) {
+      mPendingCommands = new ArrayList<>();
+    }
+    mPendingCommands.add(command);
     if (isReady) {
+      scheduleFlush();
+    }
+  }
+
+  /**
+   * Evaluates all queued scripts now instead of on the next frame.
+   * Does nothing until the editor page has loaded.
+   */
+  public void flush() {
+    if (mFlushScheduled) {
+      removeCallbacks(mFlushRunnable);
+      mFlushScheduled = false;
+    }
+    if (!isReady || mPendingCommands == null || mPendingCommands.isEmpty()) {
+      return;
+    }
+
+    EditorTrace.begin("RichEditor#flush");
+    // Callbacks may queue further commands, those go out with the next frame.
+    List<Command> commands = mPendingCommands;
+    mPendingCommands = new ArrayList<>();
+    StringBuilder script = new StringBuilder(JAVASCRIPT_SCHEME);
+    int batched = 0;
+    long oldest = 0;
+    for (Command pending : commands) {
+      if (batched == 0) {
+        oldest = pending.enqueuedAt;
+      }
+      batched++;
+      if (pending.callback == null) {
+        // Keep a failing command from aborting the ones queued after it.
+        script.append("try{").append(pending.script).append("}catch(e){console.error(e);}");
+        continue;
+      }
+
+      // Evaluations run in order, so a read sees every command issued before it.
+      if (batched > 1) {
+        load(script.toString(), batched - 1, oldest);
+        script.setLength(JAVASCRIPT_SCHEME.length());
+      }
+      evaluateCommand(pending);
+      batched = 0;
+    }
+    if (batched > 0) {
+      load(script.toString(), batched, oldest);
+    }
+    EditorTrace.end();
+  }
+
+  private void evaluateCommand(final Command command) {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+      loadUrl(JAVASCRIPT_SCHEME + command.script);
+      reportEvaluation(1, command.enqueuedAt, -1);
+      command.callback.onReceiveValue(null);
+      return;
+    }
+    if (mMetrics == null) {
+      evaluateJavascript(command.script, command.callback);
+      return;
+    }
+
+    final long start = SystemClock.uptimeMillis();
+    evaluateJavascript(command.script, new ValueCallback<String>() {
+      @Override
+      public void onReceiveValue(String value) {
+        reportEvaluation(1, command.enqueuedAt, SystemClock.uptimeMillis() - start);
+        command.callback.onReceiveValue(value);
+      }
+    });
+  }
+
+  private void load(String trigger, final int count, final long enqueuedAt) {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT || mMetrics == null) {
       load(trigger);
+      reportEvaluation(count, enqueuedAt, -1);
+      return;
+    }
+
+    final long start = SystemClock.uptimeMillis();
+    evaluateJavascript(trigger, new ValueCallback<String>() {
+      @Override
+      public void onReceiveValue(String value) {
+        reportEvaluation(count, enqueuedAt, SystemClock.uptimeMillis() - start);
+      }
+    });
+  }
+
+  private void reportEvaluation(int count, long enqueuedAt, long evaluationMillis) {
+    if (mMetrics != null) {
+      mMetrics.onCommandsEvaluated(count, SystemClock.uptimeMillis() - enqueuedAt,
+        evaluationMillis);
+    }
+  }
+
+  private void scheduleFlush() {
+    if (mFlushScheduled) {
+      return;
+    }
+    mFlushScheduled = true;
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+      postOnAnimation(mFlushRunnable);
     } else {
-      postDelayed(new Runnable() {
-        @Override
-        public void run() {
-          exec(trigger);
-        }
-      }, 100);
+      post(mFlushRunnable);
     }
   }
 
@@ -481,44 +1960,203 @@ public class RichEditor extends WebView {
     }
   }
 
+  private WebResourceResponse interceptRequest(String url) {
+    ResourceProvider provider = mResourceProvider;
+    if (provider == null) {
+      return null;
+    }
+    return mResourceCache.load(provider, url);
+  }
+
+  private static final class Command {
+    final String script;
+    final ValueCallback<String> callback;
+    final long enqueuedAt = SystemClock.uptimeMillis();
+
+    Command(String script, ValueCallback<String> callback) {
+      this.script = script;
+      this.callback = callback;
+    }
+  }
+
+  private static final class ContentRead {
+    final long version;
+    final String content;
+
+    ContentRead(long version, String content) {
+      this.version = version;
+      this.content = content;
+    }
+
+    /**
+     * @return null if the editor did not return a result
+     */
+    static ContentRead parse(String value) {
+      if (value == null || "null".equals(value)) {
+        return null;
+      }
+      try {
+        JSONObject object = new JSONObject(value);
+        return new ContentRead(object.getLong("v"),
+          object.isNull("c") ? null : object.getString("c"));
+      } catch (JSONException e) {
+        Log.e("RichEditor", "Malformed content read", e);
+        return null;
+      }
+    }
+  }
+
   protected class EditorWebViewClient extends WebViewClient {
     @Override
     public void onPageFinished(WebView view, String url) {
       isReady = url.equalsIgnoreCase(SETUP_HTML);
+      mDecorationState.reset();
+      if (isReady) {
+        EditorTrace.endAsync(LOAD_SECTION, System.identityHashCode(RichEditor.this));
+        if (mMetrics != null) {
+          mMetrics.onReady(SystemClock.uptimeMillis() - mCreatedAt);
+        }
+      }
+      flush();
       if (mLoadListener != null) {
         mLoadListener.onAfterInitialLoad(isReady);
       }
     }
 
     @Override
-    public boolean shouldOverrideUrlLoading(WebView view, String url) {
-      String decode = Uri.decode(url);
+    public WebResourceResponse shouldInterceptRequest(WebView view, String url) {
+      return interceptRequest(url);
+    }
 
-      if (TextUtils.indexOf(url, CALLBACK_SCHEME) == 0) {
-        callback(decode);
-        return true;
-      } else if (TextUtils.indexOf(url, STATE_SCHEME) == 0) {
-        stateCheck(decode);
-        return true;
-      }
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    @Override
+    public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
+      // Not super: it calls the url override, which would intercept the request again.
+      return interceptRequest(request.getUrl().toString());
+    }
 
-      return super.shouldOverrideUrlLoading(view, url);
+    @Override
+    public boolean shouldOverrideUrlLoading(WebView view, String url) {
+      return handleUrl(url) || super.shouldOverrideUrlLoading(view, url);
     }
 
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
     @Override
     public boolean shouldOverrideUrlLoading(WebView view, WebResourceRequest request) {
       final String url = request.getUrl().toString();
-      String decode = Uri.decode(url);
+      return handleUrl(url) || super.shouldOverrideUrlLoading(view, request);
+    }
+  }
+
+  /**
+   * The editor's content, selection and scroll position, kept across configuration changes.
+   */
+  static class SavedState extends BaseSavedState {
+
+    String html;
+    String handle;
+    int[] selection;
+    int scrollY;
+
+    SavedState(Parcelable superState) {
+      super(superState);
+    }
+
+    private SavedState(Parcel in) {
+      super(in);
+      html = in.readString();
+      handle = in.readString();
+      if (in.readInt() != 0) {
+        selection = new int[4];
+        for (int i = 0; i < selection.length; i++) {
+          selection[i] = in.readInt();
+        }
+      }
+      scrollY = in.readInt();
+    }
+
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+      super.writeToParcel(out, flags);
+      out.writeString(html);
+      out.writeString(handle);
+      out.writeInt(selection == null ? 0 : 1);
+      if (selection != null) {
+        for (int value : selection) {
+          out.writeInt(value);
+        }
+      }
+      out.writeInt(scrollY);
+    }
+
+    public static final Parcelable.Creator<SavedState> CREATOR =
+      new Parcelable.Creator<SavedState>() {
+        @Override
+        public SavedState createFromParcel(Parcel in) {
+          return new SavedState(in);
+        }
 
-      if (TextUtils.indexOf(url, CALLBACK_SCHEME) == 0) {
-        callback(decode);
-        return true;
-      } else if (TextUtils.indexOf(url, STATE_SCHEME) == 0) {
-        stateCheck(decode);
-        return true;
+        @Override
+        public SavedState[] newArray(int size) {
+          return new SavedState[size];
+        }
+      };
+  }
+
+  /**
+   * Receives batched messages from the editor page on the JavaBridge thread. Parsing happens
+   * there, handling is posted to the UI thread in the order the page sent the messages.
+   */
+  private class EditorBridge implements WebViewCompat.WebMessageListener {
+
+    /**
+     * The web message listener, the page itself is the only main frame.
+     */
+    @Override
+    public void onPostMessage(WebView view, WebMessageCompat message, Uri sourceOrigin,
+                              boolean isMainFrame, JavaScriptReplyProxy replyProxy) {
+      if (isMainFrame && message.getData() != null) {
+        postMessages(message.getData());
       }
-      return super.shouldOverrideUrlLoading(view, request);
+    }
+
+    /**
+     * The JavascriptInterface, used where web message listeners are not supported.
+     */
+    @JavascriptInterface
+    public void postMessages(String json) {
+      // Not checked against mTransport: the page flushes its batch when switching away from
+      // the bridge, which arrives after mTransport already changed.
+      if (!mBridgeOpen) {
+        return;
+      }
+      final long start = System.nanoTime();
+      final JSONArray messages;
+      try {
+        messages = new JSONArray(json);
+      } catch (JSONException e) {
+        Log.e("RichEditor", "Malformed editor messages", e);
+        return;
+      }
+      final long decodeNanos = System.nanoTime() - start;
+      final int size = json.length();
+
+      post(new Runnable() {
+        @Override
+        public void run() {
+          EditorTrace.begin("RichEditor#message");
+          onMessageDecoded("batch", size, decodeNanos, messages.length());
+          for (int i = 0; i < messages.length(); i++) {
+            try {
+              JSONObject message = messages.getJSONObject(i);
+              dispatch(message.getString("t"), message.get("d"));
+            } catch (JSONException e) {
+              malformedDelta(e);
+            }
+          }
+          EditorTrace.end();
+        }
+      });
     }
   }
 }
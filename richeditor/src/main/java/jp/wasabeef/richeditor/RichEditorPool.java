@@ -0,0 +1,136 @@
+package jp.wasabeef.richeditor;
+
+import android.content.Context;
+import android.content.MutableContextWrapper;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.view.ViewGroup;
+import android.view.ViewParent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copyright (C) 2020 Wasabeef
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Keeps loaded editors around so screens with several editors, or editors in list rows, do not
+ * pay for WebView creation and page load each time. Editors are created with a
+ * {@link MutableContextWrapper} that is pointed at the acquiring context.
+ * Must only be used from the UI thread.
+ */
+public class RichEditorPool {
+
+  private final Context mContext;
+  private final int mMaxSize;
+  private final List<RichEditor> mIdle = new ArrayList<>();
+  private int mPrewarmTarget;
+  private boolean mPrewarmScheduled;
+
+  private final MessageQueue.IdleHandler mPrewarmHandler = new MessageQueue.IdleHandler() {
+    @Override
+    public boolean queueIdle() {
+      // One editor per idle pass, so that input and drawing are never held up for long.
+      if (mIdle.size() < Math.min(mPrewarmTarget, mMaxSize)) {
+        mIdle.add(create(mContext));
+      }
+      mPrewarmScheduled = mIdle.size() < Math.min(mPrewarmTarget, mMaxSize);
+      return mPrewarmScheduled;
+    }
+  };
+
+  /**
+   * @param maxSize how many idle editors are kept at most, released editors beyond that are
+   * destroyed
+   */
+  public RichEditorPool(Context context, int maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+    }
+    mContext = context.getApplicationContext();
+    mMaxSize = maxSize;
+  }
+
+  /**
+   * Creates editors up to {@code count} idle ones while the UI thread has nothing else to do.
+   */
+  public void prewarm(int count) {
+    mPrewarmTarget = count;
+    if (!mPrewarmScheduled && mIdle.size() < Math.min(count, mMaxSize)) {
+      mPrewarmScheduled = true;
+      Looper.myQueue().addIdleHandler(mPrewarmHandler);
+    }
+  }
+
+  /**
+   * @return an idle editor, preferring one whose page has loaded, or a new one
+   */
+  public RichEditor acquire(Context context) {
+    RichEditor editor = null;
+    for (int i = 0; i < mIdle.size(); i++) {
+      if (mIdle.get(i).isReady()) {
+        editor = mIdle.remove(i);
+        break;
+      }
+    }
+    if (editor == null && !mIdle.isEmpty()) {
+      editor = mIdle.remove(0);
+    }
+    if (editor == null) {
+      return create(context);
+    }
+    ((MutableContextWrapper) editor.getContext()).setBaseContext(context);
+    return editor;
+  }
+
+  /**
+   * Detaches and resets the editor and keeps it for reuse, or destroys it when the pool is full
+   * or the editor did not come from a pool.
+   */
+  public void release(RichEditor editor) {
+    ViewParent parent = editor.getParent();
+    if (parent instanceof ViewGroup) {
+      ((ViewGroup) parent).removeView(editor);
+    }
+
+    if (mIdle.size() >= mMaxSize || !(editor.getContext() instanceof MutableContextWrapper)) {
+      editor.destroy();
+      return;
+    }
+    editor.reset();
+    ((MutableContextWrapper) editor.getContext()).setBaseContext(mContext);
+    mIdle.add(editor);
+  }
+
+  /**
+   * Destroys all idle editors and stops prewarming.
+   */
+  public void clear() {
+    mPrewarmTarget = 0;
+    for (RichEditor editor : mIdle) {
+      editor.destroy();
+    }
+    mIdle.clear();
+  }
+
+  public int getIdleCount() {
+    return mIdle.size();
+  }
+
+  private static RichEditor create(Context context) {
+    return new RichEditor(new MutableContextWrapper(context));
+  }
+}
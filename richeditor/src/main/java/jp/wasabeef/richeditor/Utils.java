@@ -28,13 +28,19 @@ import java.io.ByteArrayOutputStream;
 
 public final class Utils {
 
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
   private Utils() throws InstantiationException {
     throw new InstantiationException("This class is not for instantiation");
   }
 
   public static String toBase64(Bitmap bitmap) {
+    return toBase64(bitmap, Bitmap.CompressFormat.PNG, 100);
+  }
+
+  public static String toBase64(Bitmap bitmap, Bitmap.CompressFormat format, int quality) {
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    bitmap.compress(Bitmap.CompressFormat.PNG, 100, baos);
+    bitmap.compress(format, quality, baos);
     byte[] bytes = baos.toByteArray();
 
     return Base64.encodeToString(bytes, Base64.NO_WRAP);
@@ -58,10 +64,124 @@ public final class Utils {
     return bitmap;
   }
 
+  /**
+   * Renders the drawable no larger than {@code maxWidth} x {@code maxHeight}, keeping its aspect
+   * ratio. A {@link BitmapDrawable} returns its own bitmap, which must not be recycled.
+   */
+  public static Bitmap toBitmap(Drawable drawable, int maxWidth, int maxHeight) {
+    if (drawable instanceof BitmapDrawable) {
+      return ((BitmapDrawable) drawable).getBitmap();
+    }
+
+    int width = drawable.getIntrinsicWidth();
+    width = width > 0 ? width : 1;
+    int height = drawable.getIntrinsicHeight();
+    height = height > 0 ? height : 1;
+    float scale = Math.min(1f, Math.min((float) maxWidth / width, (float) maxHeight / height));
+    width = Math.max(1, Math.round(width * scale));
+    height = Math.max(1, Math.round(height * scale));
+
+    Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    Canvas canvas = new Canvas(bitmap);
+    drawable.setBounds(0, 0, canvas.getWidth(), canvas.getHeight());
+    drawable.draw(canvas);
+
+    return bitmap;
+  }
+
   public static Bitmap decodeResource(Context context, int resId) {
     return BitmapFactory.decodeResource(context.getResources(), resId);
   }
 
+  /**
+   * Decodes the resource subsampled by the largest power of two that keeps it at least
+   * {@code maxWidth} x {@code maxHeight}.
+   */
+  public static Bitmap decodeResource(Context context, int resId, int maxWidth, int maxHeight) {
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    BitmapFactory.decodeResource(context.getResources(), resId, options);
+
+    int sampleSize = 1;
+    while (options.outWidth / (sampleSize * 2) >= maxWidth
+      && options.outHeight / (sampleSize * 2) >= maxHeight) {
+      sampleSize *= 2;
+    }
+    options.inJustDecodeBounds = false;
+    options.inSampleSize = sampleSize;
+    return BitmapFactory.decodeResource(context.getResources(), resId, options);
+  }
+
+  /**
+   * @return the bitmap scaled down to fit {@code maxWidth} x {@code maxHeight}, or the same
+   * bitmap if it already fits
+   */
+  public static Bitmap scaleDown(Bitmap bitmap, int maxWidth, int maxHeight) {
+    float scale = Math.min((float) maxWidth / bitmap.getWidth(),
+      (float) maxHeight / bitmap.getHeight());
+    if (scale >= 1f) {
+      return bitmap;
+    }
+    return Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(bitmap.getWidth() * scale)),
+      Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+  }
+
+  /**
+   * Appends {@code text[start, end)} to {@code out} escaped for use inside a single or double
+   * quoted JavaScript string. '%' is escaped too, so the result survives a javascript: url.
+   */
+  public static void appendJsString(StringBuilder out, CharSequence text, int start, int end) {
+    for (int i = start; i < end; i++) {
+      char c = text.charAt(i);
+      switch (c) {
+        case '\\':
+          out.append("\\\\");
+          break;
+        case '\'':
+          out.append("\\'");
+          break;
+        case '"':
+          out.append("\\\"");
+          break;
+        case '\n':
+          out.append("\\n");
+          break;
+        case '\r':
+          out.append("\\r");
+          break;
+        case '%':
+          out.append("\\x25");
+          break;
+        case '\u2028':
+          out.append("\\u2028");
+          break;
+        case '\u2029':
+          out.append("\\u2029");
+          break;
+        default:
+          if (c < 0x20) {
+            out.append(String.format("\\u%04x", (int) c));
+          } else {
+            out.append(c);
+          }
+          break;
+      }
+    }
+  }
+
+  /**
+   * @return the color as #RRGGBB, ignoring alpha
+   */
+  public static String toHexColorString(int color) {
+    char[] hex = new char[7];
+    hex[0] = '#';
+    for (int i = 6; i > 0; i--) {
+      hex[i] = HEX_DIGITS[color & 0xF];
+      color >>= 4;
+    }
+    return new String(hex);
+  }
+
   public static long getCurrentTime() {
     return System.currentTimeMillis();
   }
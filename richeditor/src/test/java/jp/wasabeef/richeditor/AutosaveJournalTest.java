@@ -0,0 +1,132 @@
+package jp.wasabeef.richeditor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class AutosaveJournalTest {
+
+  private File directory;
+  private AutosaveJournal journal;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("autosave").toFile();
+    journal = new AutosaveJournal(directory, "draft");
+    journal.setSyncPolicy(AutosaveJournal.SyncPolicy.ON_COMPACTION);
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    journal.delete();
+    journal.await();
+    directory.delete();
+  }
+
+  @Test
+  public void recoverAcrossCompaction() throws Exception {
+    // Every delta compacts.
+    journal.setCompaction(0, 0f);
+    journal.append(reset(1, "<p>a</p>", "<p>b</p>"));
+    journal.append(insert(1, 2, 1, "<p>c</p>"));
+    journal.setCompaction(64 * 1024, 1f);
+    journal.append(insert(2, 3, 2, "<p>d</p>"));
+    journal.await();
+    Assert.assertEquals("<p>a</p><p>c</p><p>d</p><p>b</p>", journal.recover());
+  }
+
+  @Test
+  public void continueAfterClose() throws Exception {
+    journal.append(reset(1, "<p>a</p>"));
+    journal.close();
+    journal.append(insert(1, 2, 1, "<p>b</p>"));
+    journal.await();
+    Assert.assertEquals("<p>a</p><p>b</p>", journal.recover());
+  }
+
+  @Test
+  public void continueAfterWriteError() throws Exception {
+    File journalFile = new File(directory, "draft.journal");
+    // A directory in the way fails the rename of the new journal.
+    Assert.assertTrue(journalFile.mkdir());
+    journal.append(reset(1, "<p>a</p>"));
+    journal.await();
+    Assert.assertTrue(journalFile.delete());
+
+    journal.append(insert(1, 2, 1, "<p>b</p>"));
+    journal.await();
+    Assert.assertEquals("<p>a</p><p>b</p>", journal.recover());
+  }
+
+  @Test
+  public void ignoreTornTail() throws Exception {
+    journal.append(reset(1, "<p>a</p>"));
+    journal.append(insert(1, 2, 1, "<p>b</p>"));
+    journal.append(insert(2, 3, 2, "<p>c</p>"));
+    journal.close();
+    journal.await();
+
+    RandomAccessFile file = new RandomAccessFile(new File(directory, "draft.journal"), "rw");
+    try {
+      file.setLength(file.length() - 3);
+    } finally {
+      file.close();
+    }
+    Assert.assertEquals("<p>a</p><p>b</p>", journal.recover());
+  }
+
+  @Test
+  public void ignoreDamagedRecord() throws Exception {
+    journal.append(reset(1, "<p>a</p>"));
+    journal.append(insert(1, 2, 1, "<p>b</p>"));
+    journal.append(insert(2, 3, 2, "<p>c</p>"));
+    journal.close();
+    journal.await();
+
+    RandomAccessFile file = new RandomAccessFile(new File(directory, "draft.journal"), "rw");
+    try {
+      file.seek(file.length() - 2);
+      int b = file.read();
+      file.seek(file.length() - 2);
+      file.write(b ^ 0xFF);
+    } finally {
+      file.close();
+    }
+    Assert.assertEquals("<p>a</p><p>b</p>", journal.recover());
+  }
+
+  @Test
+  public void ignoreStaleJournal() throws Exception {
+    File journalFile = new File(directory, "draft.journal");
+    journal.append(reset(1, "<p>a</p>"));
+    journal.append(insert(1, 2, 1, "<p>b</p>"));
+    journal.await();
+    byte[] stale = Files.readAllBytes(journalFile.toPath());
+
+    // A crash between the two renames of a compaction leaves the previous journal.
+    journal.append(reset(3, "<p>x</p>"));
+    journal.close();
+    journal.await();
+    Files.write(journalFile.toPath(), stale);
+    Assert.assertEquals("<p>x</p>", journal.recover());
+  }
+
+  private static ContentDelta reset(long version, String... blocks) {
+    return new ContentDelta(ContentDelta.NO_VERSION, version, 0, 0, Arrays.asList(blocks));
+  }
+
+  private static ContentDelta insert(long baseVersion, long version, int start, String block) {
+    return new ContentDelta(baseVersion, version, start, 0, Collections.singletonList(block));
+  }
+}
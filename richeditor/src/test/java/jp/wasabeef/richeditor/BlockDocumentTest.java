@@ -0,0 +1,41 @@
+package jp.wasabeef.richeditor;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class BlockDocumentTest {
+
+  @Test
+  public void applyDeltas() throws Exception {
+    BlockDocument document = new BlockDocument();
+    Assert.assertTrue(document.apply(ContentDelta.parse(
+      "{\"b\":-1,\"v\":1,\"s\":0,\"d\":0,\"h\":[\"<p>a</p>\",\"<p>b</p>\",\"<p>c</p>\"]}")));
+    Assert.assertEquals("<p>a</p><p>b</p><p>c</p>", document.getHtml());
+
+    Assert.assertTrue(document.apply(ContentDelta.parse(
+      "{\"b\":1,\"v\":2,\"s\":1,\"d\":1,\"h\":[\"<p>B</p>\",\"<p>b2</p>\"]}")));
+    Assert.assertEquals("<p>a</p><p>B</p><p>b2</p><p>c</p>", document.getHtml());
+    Assert.assertEquals(2, document.getVersion());
+
+    Assert.assertTrue(document.apply(ContentDelta.parse(
+      "{\"b\":2,\"v\":3,\"s\":0,\"d\":2,\"h\":[]}")));
+    Assert.assertEquals("<p>b2</p><p>c</p>", document.getHtml());
+  }
+
+  @Test
+  public void rejectOutOfSyncDelta() throws Exception {
+    BlockDocument document = new BlockDocument();
+    Assert.assertTrue(document.apply(ContentDelta.parse(
+      "{\"b\":-1,\"v\":4,\"s\":0,\"d\":0,\"h\":[\"x\"]}")));
+
+    Assert.assertFalse(document.apply(ContentDelta.parse(
+      "{\"b\":3,\"v\":5,\"s\":0,\"d\":1,\"h\":[\"y\"]}")));
+    Assert.assertFalse(document.apply(ContentDelta.parse(
+      "{\"b\":4,\"v\":5,\"s\":1,\"d\":1,\"h\":[\"y\"]}")));
+    Assert.assertEquals("x", document.getHtml());
+    Assert.assertEquals(4, document.getVersion());
+  }
+}
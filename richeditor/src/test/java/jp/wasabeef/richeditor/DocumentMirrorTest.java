@@ -0,0 +1,58 @@
+package jp.wasabeef.richeditor;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+@RunWith(RobolectricTestRunner.class)
+public class DocumentMirrorTest {
+
+  @Test
+  public void textQueries() {
+    DocumentMirror document = new DocumentMirror();
+    document.setHtml("hel<b>lo</b> world<div>Second&nbsp;line &amp; "
+      + "<a href=\"https://example.com/?a=1&amp;b=2\">link</a></div>"
+      + "<ul><li>one</li><li>two</li></ul><div><br></div>tail");
+
+    Assert.assertEquals(7, document.getBlockCount());
+    Assert.assertEquals("hello world\nSecond line & link\none\ntwo\n\ntail", document.getText());
+    Assert.assertEquals(39, document.getCharacterCount());
+    Assert.assertEquals(9, document.getWordCount());
+    Assert.assertEquals(Collections.singletonList("https://example.com/?a=1&b=2"),
+      document.getLinks());
+    Assert.assertFalse(document.isEmpty());
+
+    document.setHtml("<div><br></div><img src=\"a.png\">");
+    Assert.assertTrue(document.isEmpty());
+  }
+
+  @Test
+  public void reuseUnchangedBlocks() {
+    DocumentMirror document = new DocumentMirror();
+    document.setHtml("<p>a</p><p>b</p><p>c</p>");
+    DocumentMirror.Block first = document.getBlocks().get(0);
+    DocumentMirror.Block last = document.getBlocks().get(2);
+
+    document.setHtml("<p>a</p><p>B b</p><p>c</p>");
+    Assert.assertSame(first, document.getBlocks().get(0));
+    Assert.assertSame(last, document.getBlocks().get(2));
+    Assert.assertEquals(4, document.getWordCount());
+  }
+
+  @Test
+  public void applyDeltas() {
+    DocumentMirror document = new DocumentMirror();
+    document.apply(new ContentDelta(ContentDelta.NO_VERSION, 1, 0, 0,
+      Arrays.asList("<p>a b</p>", "<p>c</p>")));
+    DocumentMirror.Block last = document.getBlocks().get(1);
+
+    document.apply(new ContentDelta(1, 2, 0, 1, Collections.singletonList("<p>x</p>")));
+    Assert.assertEquals("x\nc", document.getText());
+    Assert.assertEquals(2, document.getWordCount());
+    Assert.assertSame(last, document.getBlocks().get(1));
+  }
+}
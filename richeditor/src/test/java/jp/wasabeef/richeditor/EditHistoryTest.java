@@ -0,0 +1,121 @@
+package jp.wasabeef.richeditor;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class EditHistoryTest {
+
+  private static ContentDelta replace(long version, int start, String... blocks) {
+    return new ContentDelta(version - 1, version, start, 1, Arrays.asList(blocks));
+  }
+
+  private static List<String> blocks(String... blocks) {
+    return Arrays.asList(blocks);
+  }
+
+  @Test
+  public void coalesceTypingIntoWords() {
+    EditHistory history = new EditHistory();
+    history.record(replace(1, 0, "<p>h</p>"), blocks("<p></p>"), 0);
+    history.record(replace(2, 0, "<p>hi</p>"), blocks("<p>h</p>"), 100);
+    history.record(replace(3, 0, "<p>hi&nbsp;</p>"), blocks("<p>hi</p>"), 200);
+    history.record(replace(4, 0, "<p>hi t</p>"), blocks("<p>hi&nbsp;</p>"), 300);
+    Assert.assertEquals(2, history.getUndoCount());
+
+    EditHistory.Step step = history.undo();
+    Assert.assertEquals(blocks("<p>hi&nbsp;</p>"), step.removed);
+    Assert.assertEquals(blocks("<p>hi t</p>"), step.inserted);
+    history.onApplied();
+
+    step = history.undo();
+    Assert.assertEquals(blocks("<p></p>"), step.removed);
+    Assert.assertEquals(blocks("<p>hi&nbsp;</p>"), step.inserted);
+    history.onApplied();
+    Assert.assertEquals(2, history.getRedoCount());
+  }
+
+  @Test
+  public void pauseEndsStep() {
+    EditHistory history = new EditHistory();
+    history.record(replace(1, 0, "<p>a</p>"), blocks("<p></p>"), 0);
+    history.record(replace(2, 0, "<p>ab</p>"), blocks("<p>a</p>"),
+      EditHistory.COALESCE_WINDOW_MILLIS);
+    Assert.assertEquals(2, history.getUndoCount());
+  }
+
+  @Test
+  public void rejectedStepIsKept() {
+    EditHistory history = new EditHistory();
+    history.record(replace(1, 0, "<p>a</p>"), blocks("<p></p>"), 0);
+    Assert.assertNotNull(history.undo());
+    Assert.assertFalse(history.canUndo());
+    history.onRejected();
+    Assert.assertTrue(history.canUndo());
+    Assert.assertFalse(history.canRedo());
+  }
+
+  @Test
+  public void evictOldestBeyondMemoryLimit() {
+    EditHistory history = new EditHistory();
+    char[] text = new char[1000];
+    Arrays.fill(text, 'x');
+    String block = "<p>" + new String(text) + "</p>";
+    for (int i = 0; i < 10; i++) {
+      history.record(new ContentDelta(i, i + 1, i, 0, Collections.singletonList(block)),
+        Collections.<String>emptyList(), i * EditHistory.COALESCE_WINDOW_MILLIS);
+    }
+    Assert.assertEquals(10, history.getUndoCount());
+
+    history.setMemoryLimit(5000);
+    Assert.assertEquals(2, history.getUndoCount());
+    Assert.assertTrue(history.getSize() <= 5000);
+    Assert.assertEquals(9, history.undo().start);
+  }
+
+  @Test
+  public void saveAndRestore() throws Exception {
+    EditHistory history = new EditHistory();
+    history.record(replace(1, 0, "<p>a</p>"), blocks("<p></p>"), 0);
+    history.record(replace(2, 1, "<p>ü</p>"), blocks("<p>b</p>"), 5000);
+    byte[] saved = history.save(blocks("<p>a</p>", "<p>ü</p>"));
+
+    EditHistory restored = new EditHistory();
+    restored.restore(saved);
+    restored.record(new ContentDelta(ContentDelta.NO_VERSION, 1, 0, 0,
+      blocks("<p>a</p>", "<p>ü</p>")), null, 0);
+    Assert.assertEquals(2, restored.getUndoCount());
+    Assert.assertEquals(blocks("<p>b</p>"), restored.undo().removed);
+
+    restored.restore(saved);
+    restored.record(new ContentDelta(ContentDelta.NO_VERSION, 1, 0, 0,
+      blocks("<p>other</p>")), null, 0);
+    Assert.assertEquals(0, restored.getUndoCount());
+  }
+
+  @Test
+  public void restoreSurvivesSecondReset() throws Exception {
+    EditHistory history = new EditHistory();
+    history.record(replace(1, 0, "<p>a</p>"), blocks("<p></p>"), 0);
+    byte[] saved = history.save(blocks("<p>a</p>"));
+
+    // Enabling delta mode and a resync each send a reset of the same document.
+    EditHistory restored = new EditHistory();
+    restored.restore(saved);
+    restored.record(new ContentDelta(ContentDelta.NO_VERSION, 1, 0, 0, blocks("<p>a</p>")),
+      blocks(), 0);
+    restored.record(new ContentDelta(ContentDelta.NO_VERSION, 2, 0, 0, blocks("<p>a</p>")),
+      blocks("<p>a</p>"), 0);
+    Assert.assertEquals(1, restored.getUndoCount());
+
+    restored.record(new ContentDelta(ContentDelta.NO_VERSION, 3, 0, 0, blocks("<p>b</p>")),
+      blocks("<p>a</p>"), 0);
+    Assert.assertEquals(0, restored.getUndoCount());
+  }
+}
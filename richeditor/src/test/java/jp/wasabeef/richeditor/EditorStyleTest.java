@@ -0,0 +1,57 @@
+package jp.wasabeef.richeditor;
+
+import android.graphics.Color;
+import android.view.Gravity;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+@RunWith(RobolectricTestRunner.class)
+public class EditorStyleTest {
+
+  @Test
+  public void properties() {
+    EditorStyle style = new EditorStyle.Builder()
+      .setTextColor(Color.BLACK)
+      .setBackgroundColor(0x80FFFFFF)
+      .setPadding(1, 2, 3, 4)
+      .setGravity(Gravity.CENTER)
+      .setPlaceholder("Say \"hi\"")
+      .build();
+
+    Map<String, String> expected = new LinkedHashMap<>();
+    expected.put(EditorStyle.TEXT_COLOR, "#000000");
+    expected.put(EditorStyle.BACKGROUND_COLOR, "rgba(255, 255, 255, 0.502)");
+    expected.put(EditorStyle.PADDING, "2px 3px 4px 1px");
+    expected.put(EditorStyle.TEXT_ALIGN, "center");
+    expected.put(EditorStyle.VERTICAL_ALIGN, "middle");
+    expected.put(EditorStyle.PLACEHOLDER, "\"Say \\\"hi\\\"\"");
+    Assert.assertEquals(expected, style.getProperties());
+  }
+
+  @Test
+  public void diff() {
+    EditorStyle light = new EditorStyle.Builder()
+      .setTextColor(Color.BLACK)
+      .setFontSize(16)
+      .setPlaceholder("Write")
+      .build();
+    EditorStyle dark = light.toBuilder()
+      .setTextColor(Color.WHITE)
+      .setPlaceholder(null)
+      .build();
+
+    Map<String, String> expected = new LinkedHashMap<>();
+    expected.put(EditorStyle.TEXT_COLOR, "#FFFFFF");
+    expected.put(EditorStyle.PLACEHOLDER, null);
+    Assert.assertEquals(expected, dark.diff(light));
+    Assert.assertTrue(dark.diff(dark.toBuilder().build()).isEmpty());
+    Assert.assertNull(dark.toScript(dark.toBuilder().build()));
+    Assert.assertSame(light.toScript(null), light.toScript(null));
+  }
+}
@@ -0,0 +1,71 @@
+package jp.wasabeef.richeditor;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+@RunWith(RobolectricTestRunner.class)
+public class HtmlCodecTest {
+
+  @Test
+  public void roundTrip() throws IOException {
+    String html = "<div><font face=\"Arial\" size=\"2\" color=\"#333333\">one</font></div>"
+      + "<div><font face=\"Arial\" size=\"2\" color=\"#333333\">two</font>&nbsp;&amp;<br></div>"
+      + "<ul><li>ぁ ص</li></ul><!-- note --><input type=\"checkbox\" checked/>a &lt; b < c";
+    for (boolean compress : new boolean[] {true, false}) {
+      Assert.assertEquals(html, HtmlCodec.decode(HtmlCodec.encode(html, compress)));
+    }
+    Assert.assertEquals("", HtmlCodec.decode(HtmlCodec.encode("")));
+  }
+
+  @Test
+  public void normalizeTags() throws IOException {
+    String html = "<DIV Class='a\"b' data-x=1  hidden>x</DIV ><SCRIPT>if (a<b) {}</script>";
+    String normalized = HtmlCodec.decode(HtmlCodec.encode(html));
+    Assert.assertEquals(
+      "<div class=\"a&quot;b\" data-x=\"1\" hidden>x</div><script>if (a<b) {}</script>",
+      normalized);
+    Assert.assertEquals(normalized, HtmlCodec.decode(HtmlCodec.encode(normalized)));
+  }
+
+  @Test
+  public void repeatedTagsAreSmall() {
+    String wrapper = "<div><font face=\"Arial\" size=\"2\" color=\"#333333\">x</font></div>";
+    int one = HtmlCodec.encode(wrapper, false).length;
+    int two = HtmlCodec.encode(wrapper + wrapper, false).length;
+    Assert.assertTrue(two - one < 12);
+  }
+
+  @Test
+  public void stream() throws IOException {
+    StringBuilder html = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      html.append("<div><b>Block</b> ").append(i).append("</div>");
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    HtmlCodec.encode(html.toString(), out, true);
+    StringBuilder decoded = new StringBuilder();
+    HtmlCodec.decode(new ByteArrayInputStream(out.toByteArray()), decoded);
+    Assert.assertEquals(html.toString(), decoded.toString());
+  }
+
+  @Test
+  public void rejectCorruptInput() {
+    byte[] encoded = HtmlCodec.encode("<div>text</div>", false);
+    for (byte[] bad : new byte[][] {
+      Arrays.copyOf(encoded, encoded.length - 1), "<div>".getBytes()}) {
+      try {
+        HtmlCodec.decode(bad);
+        Assert.fail();
+      } catch (IOException expected) {
+        // Expected
+      }
+    }
+  }
+}
@@ -0,0 +1,34 @@
+package jp.wasabeef.richeditor;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class HtmlTextTest {
+
+  @Test
+  public void chunksKeepSurrogatePairs() {
+    int size = RichEditor.STREAM_CHUNK_SIZE;
+    StringBuilder html = new StringBuilder(2 * size);
+    for (int i = 0; i < 2 * size; i++) {
+      html.append('a');
+    }
+    html.setCharAt(size - 1, '\uD83D');
+    html.setCharAt(size, '\uDE00');
+
+    List<Integer> ends = HtmlText.chunkEnds(html.toString(), size);
+    Assert.assertEquals(Arrays.asList(size - 1, 2 * size - 1, 2 * size), ends);
+  }
+
+  @Test
+  public void chunksCoverText() {
+    Assert.assertEquals(Arrays.asList(3, 6, 7), HtmlText.chunkEnds("abcdefg", 3));
+    Assert.assertEquals(Arrays.asList(2, 3), HtmlText.chunkEnds("😀a", 1));
+    Assert.assertTrue(HtmlText.chunkEnds("", 3).isEmpty());
+  }
+}
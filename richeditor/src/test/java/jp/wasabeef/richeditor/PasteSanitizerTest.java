@@ -0,0 +1,61 @@
+package jp.wasabeef.richeditor;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class PasteSanitizerTest {
+
+  @Test
+  public void webPage() {
+    String html = "<html><head><meta charset=\"utf-8\"><style>p{color:red}</style></head><body>\n"
+      + "<!--StartFragment--><p class=\"x\" style=\"color:red\">Hello <span style=\"font-weight:"
+      + "bold\">world</span></p>\n<section><a href='https://example.com/?q=\"a\"' onclick=\"x()\">"
+      + "link</a></section><script>alert(1)</script><!--EndFragment--></body></html>";
+
+    Assert.assertEquals("<p>Hello world</p>"
+        + "<div><a href=\"https://example.com/?q=&quot;a&quot;\">link</a></div>",
+      PasteSanitizer.DEFAULT.sanitize(html));
+  }
+
+  @Test
+  public void closeUnbalancedTags() {
+    Assert.assertEquals("<b>one <i>two</i></b> three",
+      PasteSanitizer.DEFAULT.sanitize("<b>one <i>two</b> three</div>"));
+  }
+
+  @Test
+  public void unsafeUrls() {
+    Assert.assertEquals("<a>a</a><a>b</a><img src=\"data:image/png;base64,AA\"><img>",
+      PasteSanitizer.DEFAULT.sanitize("<a href=\" Java\tScript:x()\">a</a>"
+        + "<a href=\"java&#x73;cript:x()\">b</a><img src=\"data:image/png;base64,AA\" onerror=x>"
+        + "<img src=\"data:text/html,x\">"));
+    Assert.assertEquals("<a>c</a><a>d</a><a>e</a><a>f</a>",
+      PasteSanitizer.DEFAULT.sanitize("<a href=\"&#106avascript:x()\">c</a>"
+        + "<a href=\"&#x6Aavascript:x()\">d</a><a href=\"&#0000000106;avascript:x()\">e</a>"
+        + "<a href=\"&amp;#106;avascript:x()\">f</a>"));
+  }
+
+  @Test
+  public void allowlist() {
+    PasteSanitizer sanitizer = PasteSanitizer.DEFAULT
+      .withAttributes("span", "style")
+      .withoutTags("p", "b");
+    Assert.assertEquals("<div>a<span style=\"color: red\">b</span>c</div>",
+      sanitizer.sanitize("<p>a<span style=\"color: red\" id=\"s\">b</span><b>c</b></p>"));
+  }
+
+  @Test
+  public void keepPreformattedText() {
+    Assert.assertEquals("<pre>  a\n  b</pre>x &lt; y",
+      PasteSanitizer.DEFAULT.sanitize("<pre>  a\n  b</pre>\n x  <  y"));
+  }
+
+  @Test
+  public void plainText() {
+    Assert.assertEquals("a &nbsp;b<br>&lt;c&gt; &amp;<br>&nbsp;d",
+      PasteSanitizer.DEFAULT.sanitizeText("a  b\r\n<c> &\n d"));
+  }
+}